@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.util.Random;
+
+/**
+ * Seeded synthetic data for the benchmarks: points drawn from Gaussian
+ * clusters with axis-parallel radii, plus uniform noise, in the domain
+ * [0, width-1]^dimensionality. The same parameters always produce the same
+ * points, so that measures taken before and after a change are comparable.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class BenchmarkData {
+
+    public static final long SEED = 100;
+    public static final double NOISE_RATIO = 0.05;
+
+    public final int dimensionality;
+    public final int width;
+    public final int nOfClusters;
+    public final int[][] centers; //centers[c][k] is the k-th coordinate of the center of the c-th cluster
+    public final double[][] radii; //radii[c][k] is the standard deviation of the c-th cluster along the k-th dimension
+    final Random rand;
+
+    public BenchmarkData(int dimensionality, int width, int nOfClusters) {
+        this(dimensionality, width, nOfClusters, SEED);
+    }
+
+    public BenchmarkData(int dimensionality, int width, int nOfClusters, long seed) {
+        this.dimensionality = dimensionality;
+        this.width = width;
+        this.nOfClusters = nOfClusters;
+        rand = new Random(seed);
+        centers = new int[nOfClusters][dimensionality];
+        radii = new double[nOfClusters][dimensionality];
+        //the clusters are placed as in the generator of the master, with a spacing of width/(nOfClusters+1)
+        double interval = 1.0 / (nOfClusters + 1);
+        for (int c = 0; c < nOfClusters; c++) {
+            for (int k = 0; k < dimensionality; k++) {
+                centers[c][k] = (int) (width * interval * (1 + rand.nextInt(nOfClusters)));
+                radii[c][k] = Math.max(1, width * interval * (0.05 + 0.15 * rand.nextDouble()));
+            }
+        }
+    }
+
+    public static Range domain(int dimensionality, int width) {
+        int[] inf = new int[dimensionality];
+        int[] sup = new int[dimensionality];
+        for (int k = 0; k < dimensionality; k++) {
+            sup[k] = width - 1;
+        }
+        return new Range(inf, sup);
+    }
+
+    public Range domain() {
+        return domain(dimensionality, width);
+    }
+
+    //fills p with the next point, which belongs to the c-th cluster or, if c is negative, is noise
+    public void nextPoint(int c, int[] p) {
+        for (int k = 0; k < dimensionality; k++) {
+            if (c < 0) {
+                p[k] = rand.nextInt(width);
+            } else {
+                int v = (int) Math.round(centers[c][k] + rand.nextGaussian() * radii[c][k]);
+                p[k] = Math.max(0, Math.min(width - 1, v));
+            }
+        }
+    }
+
+    //returns the cluster of the next point, or -1 for noise
+    public int nextCluster() {
+        return rand.nextDouble() < NOISE_RATIO ? -1 : rand.nextInt(nOfClusters);
+    }
+
+    public PointStore points(int n) {
+        PointStore points = new PointStore(dimensionality, n);
+        int[] p = new int[dimensionality];
+        for (int j = 0; j < n; j++) {
+            nextPoint(nextCluster(), p);
+            points.add(p);
+        }
+        return points;
+    }
+}
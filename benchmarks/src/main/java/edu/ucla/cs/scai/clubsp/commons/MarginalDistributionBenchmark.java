@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the operations on the marginal distributions used when blocks are
+ * split and when the marginals of the workers are merged: add, sub and
+ * getCopy, on marginals built from the points of the synthetic generator.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class MarginalDistributionBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int width;
+
+    @Param({"2", "8", "32"})
+    int dimensionality;
+
+    @Param({"100000", "1000000"})
+    int points;
+
+    MarginalDistributionWithSquares left; //marginal of the first half of the points
+    MarginalDistributionWithSquares right; //marginal of the second half of the points
+    MarginalDistributionWithSquares accumulator;
+    MarginalDistribution plainRight; //without squares, as the global marginals
+    MarginalDistribution plainAccumulator;
+
+    @Setup
+    public void setup() {
+        BenchmarkData data = new BenchmarkData(dimensionality, width, 10);
+        left = new MarginalDistributionWithSquares(width, dimensionality);
+        right = new MarginalDistributionWithSquares(width, dimensionality);
+        int[] p = new int[dimensionality];
+        for (int j = 0; j < points; j++) {
+            data.nextPoint(data.nextCluster(), p);
+            (j % 2 == 0 ? left : right).add(p, p[0]);
+        }
+        plainRight = right.getSimpleCopy();
+    }
+
+    //add and sub change the accumulator, which is restored at each iteration
+    @Setup(Level.Iteration)
+    public void resetAccumulator() {
+        accumulator = left.getCopy();
+        plainAccumulator = left.getSimpleCopy();
+    }
+
+    @Benchmark
+    public MarginalDistributionWithSquares add() {
+        accumulator.add(right);
+        return accumulator;
+    }
+
+    @Benchmark
+    public MarginalDistributionWithSquares sub() {
+        accumulator.sub(right);
+        return accumulator;
+    }
+
+    @Benchmark
+    public MarginalDistributionWithSquares getCopy() {
+        return left.getCopy();
+    }
+
+    @Benchmark
+    public MarginalDistribution addPlain() {
+        plainAccumulator.add(plainRight);
+        return plainAccumulator;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Utils.ellipticalRelativeDistanceWithLimit1, which is evaluated for
+ * every point and every cluster during the final refinement. Each invocation
+ * computes the distances of a batch of generated points from all the
+ * clusters of the generator, as the final refinement does.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"2", "8", "32", "64"})
+    int dimensionality;
+
+    @Param({"10", "100"})
+    int clusters;
+
+    @Param({"10000"})
+    int points;
+
+    double[][] centers;
+    double[][] radii;
+    int[][] intPoints;
+    double[][] doublePoints;
+
+    @Setup
+    public void setup() {
+        BenchmarkData data = new BenchmarkData(dimensionality, 100000, clusters);
+        centers = new double[clusters][dimensionality];
+        radii = new double[clusters][dimensionality];
+        for (int c = 0; c < clusters; c++) {
+            for (int k = 0; k < dimensionality; k++) {
+                centers[c][k] = data.centers[c][k];
+                radii[c][k] = 3 * data.radii[c][k]; //the final refinement uses a multiple of the radius
+            }
+        }
+        intPoints = new int[points][dimensionality];
+        doublePoints = new double[points][dimensionality];
+        for (int j = 0; j < points; j++) {
+            data.nextPoint(data.nextCluster(), intPoints[j]);
+            for (int k = 0; k < dimensionality; k++) {
+                doublePoints[j][k] = intPoints[j][k];
+            }
+        }
+    }
+
+    @Benchmark
+    public int intPoints() {
+        int inside = 0;
+        for (int[] p : intPoints) {
+            for (int c = 0; c < centers.length; c++) {
+                if (Utils.ellipticalRelativeDistanceWithLimit1(centers[c], radii[c], p) <= 1) {
+                    inside++;
+                }
+            }
+        }
+        return inside;
+    }
+
+    @Benchmark
+    public int doublePoints() {
+        int inside = 0;
+        for (double[] p : doublePoints) {
+            for (int c = 0; c < centers.length; c++) {
+                if (Utils.ellipticalRelativeDistanceWithLimit1(centers[c], radii[c], p) <= 1) {
+                    inside++;
+                }
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.master;
+
+import edu.ucla.cs.scai.clubsp.commons.BenchmarkData;
+import edu.ucla.cs.scai.clubsp.commons.Range;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the agglomerative phase of the master: the construction of the
+ * ClusterBlocksHeap on the leaf blocks, and the sequence of merges performed
+ * with updateQueueByMerge until no admissible pair is left.
+ * The blocks are groups of points of the synthetic generator, several blocks
+ * for each generated cluster, as the leaves produced by the divisive phase.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterBlocksHeapBenchmark {
+
+    static final int POINTS_PER_BLOCK = 100;
+
+    @Param({"64", "256", "1024"})
+    int blocks;
+
+    @Param({"2", "8", "32"})
+    int dimensionality;
+
+    @Param({"10000"})
+    int width;
+
+    ArrayList<MasterClusterBlock> leaves;
+
+    @Setup
+    public void setup() {
+        BenchmarkData data = new BenchmarkData(dimensionality, width, Math.max(1, blocks / 8));
+        leaves = new ArrayList<>();
+        int[] p = new int[dimensionality];
+        for (int i = 0; i < blocks; i++) {
+            int[] inf = new int[dimensionality];
+            int[] sup = new int[dimensionality];
+            double[] LS = new double[dimensionality];
+            double[] SS = new double[dimensionality];
+            for (int k = 0; k < dimensionality; k++) {
+                inf[k] = Integer.MAX_VALUE;
+                sup[k] = Integer.MIN_VALUE;
+            }
+            int cluster = i % data.nOfClusters;
+            for (int j = 0; j < POINTS_PER_BLOCK; j++) {
+                data.nextPoint(cluster, p);
+                for (int k = 0; k < dimensionality; k++) {
+                    inf[k] = Math.min(inf[k], p[k]);
+                    sup[k] = Math.max(sup[k], p[k]);
+                    LS[k] += p[k];
+                    SS[k] += 1.0 * p[k] * p[k];
+                }
+            }
+            MasterClusterBlock block = MasterClusterBlock.initRoot(new Range(inf, sup), i + 1);
+            block.addGlobalNLSSS(POINTS_PER_BLOCK, LS, SS, true);
+            block.computeGlobalSSQ();
+            leaves.add(block);
+        }
+    }
+
+    //the ids of the merged blocks must not collide with the ids of the leaves, which are 1..blocks
+    static Sequence sequenceAfterLeaves(int blocks) {
+        Sequence sequence = new Sequence();
+        for (int i = 0; i < blocks; i++) {
+            sequence.next();
+        }
+        return sequence;
+    }
+
+    //updateQueueByMerge consumes the heap, so each invocation of merge gets a new one
+    @State(Scope.Thread)
+    public static class HeapState {
+
+        ClusterBlocksHeap heap;
+
+        @Setup(Level.Invocation)
+        public void buildHeap(ClusterBlocksHeapBenchmark b) {
+            heap = new ClusterBlocksHeap(b.leaves, sequenceAfterLeaves(b.blocks), false);
+        }
+    }
+
+    @Benchmark
+    public ClusterBlocksHeap construct() {
+        return new ClusterBlocksHeap(leaves, sequenceAfterLeaves(blocks), false);
+    }
+
+    @Benchmark
+    public MasterClusterBlock merge(HeapState state) {
+        MasterClusterBlock last = null;
+        while (!state.heap.isEmpty()) {
+            last = state.heap.updateQueueByMerge();
+        }
+        return last;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import edu.ucla.cs.scai.clubsp.commons.BestSplitResult;
+import java.nio.DoubleBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the best split scan of WorkerClusterBlock with the previous
+ * implementation, which walked jagged marginal sums and used Math.pow.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class BestSplitBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int width;
+
+    @Param({"2", "8", "32", "64"})
+    int dimensionality;
+
+    int[] count;
+    DoubleBuffer sum; //flat, sum.get(pos * dimensionality + k), as in the marginals
+    double[][] jaggedSum; //sum[pos][k], as in the previous implementation
+    double[] LS;
+    int n;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(width * 31L + dimensionality);
+        count = new int[width];
+        sum = DoubleBuffer.allocate(width * dimensionality);
+        jaggedSum = new double[width][dimensionality];
+        LS = new double[dimensionality];
+        for (int pos = 0; pos < width; pos++) {
+            count[pos] = rand.nextInt(4); //a quarter of the positions are empty
+            n += count[pos];
+            for (int k = 0; k < dimensionality; k++) {
+                double s = count[pos] * (double) rand.nextInt(width);
+                sum.put(pos * dimensionality + k, s);
+                jaggedSum[pos][k] = s;
+                LS[k] += s;
+            }
+        }
+    }
+
+    @Benchmark
+    public BestSplitResult scan() {
+        return WorkerClusterBlock.scanBestSplit(count, sum, width, 0, dimensionality, n, LS);
+    }
+
+    @Benchmark
+    public BestSplitResult legacy() {
+        return legacyBestSplit(count, jaggedSum, width, 0, dimensionality, n, LS);
+    }
+
+    //the implementation of computeBestSplit before the scan was restructured
+    static BestSplitResult legacyBestSplit(int[] count, double[][] sum, int width, int inf, int dimensionality, int globalN, double[] globalLS) {
+        double maxDeltaSSQ = 0;
+        int bestPosition = -1;
+        double[] leftLS = new double[dimensionality];
+        double[] rightLS = new double[dimensionality];
+        int nLeft = 0;
+        int nRight = globalN;
+        System.arraycopy(globalLS, 0, rightLS, 0, dimensionality);
+        for (int pos = 0; pos < width - 1; pos++) {
+            if (count[pos] == 0) {
+                continue;
+            }
+            nLeft += count[pos];
+            nRight -= count[pos];
+            if (nRight == 0) {
+                break;
+            }
+            for (int k = 0; k < dimensionality; k++) {
+                leftLS[k] += sum[pos][k];
+                rightLS[k] -= sum[pos][k];
+            }
+            double deltaSSQ = 0;
+            for (int k = 0; k < dimensionality; k++) {
+                deltaSSQ += Math.pow(leftLS[k] / nLeft - rightLS[k] / nRight, 2);
+            }
+            deltaSSQ *= (1.0 * Math.max(nLeft, nRight) / globalN) * Math.min(nLeft, nRight);
+            if (deltaSSQ > maxDeltaSSQ) {
+                maxDeltaSSQ = deltaSSQ;
+                bestPosition = inf + pos;
+            }
+        }
+        return new BestSplitResult(bestPosition, maxDeltaSSQ);
+    }
+}
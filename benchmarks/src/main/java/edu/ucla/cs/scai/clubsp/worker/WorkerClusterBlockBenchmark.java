@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import edu.ucla.cs.scai.clubsp.commons.BenchmarkData;
+import edu.ucla.cs.scai.clubsp.commons.BestSplitResult;
+import edu.ucla.cs.scai.clubsp.commons.PointStore;
+import edu.ucla.cs.scai.clubsp.commons.Range;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the kernels executed by a worker on a block: the computation of
+ * the marginals from the data (through initRoot), the best split and the
+ * valley criterion on the global marginals, and the split of the block.
+ * The root block is built on the points of the synthetic generator, and is
+ * the only worker of the execution, so the global values are the local ones.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class WorkerClusterBlockBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int width;
+
+    @Param({"2", "8", "16"})
+    int dimensionality;
+
+    @Param({"100000", "1000000"})
+    int points;
+
+    PointStore store;
+    Range domain;
+    WorkerClusterBlock root;
+    int[] initialPermutation;
+    int splitDimension;
+    int splitPosition;
+
+    @Setup
+    public void setup() {
+        store = new BenchmarkData(dimensionality, width, 10).points(points);
+        domain = BenchmarkData.domain(dimensionality, width);
+        root = WorkerClusterBlock.initRoot(store, domain, 1);
+        root.globalN = root.localN;
+        root.globalLS = root.localLS;
+        root.globalSS = root.localSS;
+        for (int k = 0; k < dimensionality; k++) {
+            root.globalMarginals[k] = root.localMarginals[k].getSimpleCopy();
+        }
+        initialPermutation = root.permutation.clone();
+        //the split used by the benchmark is the best one along the first dimension, as chosen by the master
+        splitDimension = 0;
+        splitPosition = root.computeBestSplit(splitDimension).getPosition();
+        if (splitPosition < 0) {
+            splitPosition = width / 2;
+        }
+    }
+
+    //split partitions the permutation of the root in place, so each invocation starts from the original order
+    //this is a separate state, so that the other benchmarks are not charged with the restore
+    @State(Scope.Thread)
+    public static class SplitState {
+
+        @Setup(Level.Invocation)
+        public void restorePermutation(WorkerClusterBlockBenchmark b) {
+            System.arraycopy(b.initialPermutation, 0, b.root.permutation, 0, b.initialPermutation.length);
+        }
+    }
+
+    @Benchmark
+    public WorkerClusterBlock computeMarginalsFromData() {
+        return WorkerClusterBlock.initRoot(store, domain, 1);
+    }
+
+    @Benchmark
+    public BestSplitResult computeBestSplit() {
+        return root.computeBestSplit(splitDimension);
+    }
+
+    @Benchmark
+    public boolean valleyCriterion() {
+        return root.valleyCriterion(splitDimension, 0.1);
+    }
+
+    @Benchmark
+    public WorkerClusterBlock[] split(SplitState state) {
+        return root.split(splitDimension, splitPosition, 2, 3);
+    }
+}
@@ -15,8 +15,10 @@
  */
 package edu.ucla.cs.scai.clubsp;
 
+import edu.ucla.cs.scai.clubsp.messages.CancelExecutionRequest;
+import edu.ucla.cs.scai.clubsp.messages.MessageOutputStream;
+import edu.ucla.cs.scai.clubsp.messages.ResumeExecutionRequest;
 import edu.ucla.cs.scai.clubsp.messages.StartClusteringRequest;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 /**
@@ -25,8 +27,11 @@ import java.net.Socket;
  */
 public class ClubsPStarter {
 
+    //args: host port dataSetId, or host port cancel|resume executionId
     public static void main(String args[]) {
-        if (args == null || args.length != 3) {
+        boolean cancel = args != null && args.length == 4 && args[2].equals("cancel");
+        boolean resume = args != null && args.length == 4 && args[2].equals("resume");
+        if (!cancel && !resume && (args == null || args.length != 3)) {
             args = new String[]{"localhost", "9192", "100000000p_2d_16c_0.02n.data"};
             //args = new String[]{"localhost", "9192", "testp.data"};
         }
@@ -40,8 +45,14 @@ public class ClubsPStarter {
         }
 
         try (Socket s = new Socket(args[0], port);
-                ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());) {
-            out.writeObject(new StartClusteringRequest(args[2]));
+                MessageOutputStream out = new MessageOutputStream(s.getOutputStream());) {
+            if (cancel) {
+                out.writeMessage(new CancelExecutionRequest(args[3]));
+            } else if (resume) {
+                out.writeMessage(new ResumeExecutionRequest(args[3]));
+            } else {
+                out.writeMessage(new StartClusteringRequest(args[2]));
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
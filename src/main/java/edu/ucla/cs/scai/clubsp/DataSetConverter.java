@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp;
+
+import edu.ucla.cs.scai.clubsp.commons.ColumnarDataSetFile;
+
+/**
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class DataSetConverter {
+
+    //args[0] is the text data set
+    //args[1] is the columnar data set to be created
+    public static void main(String args[]) {
+        if (args == null || args.length != 2) {
+            System.out.println("Parameters needed: textDataSet columnarDataSet");
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            ColumnarDataSetFile.convert(args[0], args[1]);
+            System.out.println("Converted " + args[0] + " into " + args[1] + " in " + (System.currentTimeMillis() - startTime) + " msec");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -15,9 +15,9 @@
  */
 package edu.ucla.cs.scai.clubsp;
 
+import edu.ucla.cs.scai.clubsp.messages.MessageOutputStream;
 import edu.ucla.cs.scai.clubsp.messages.StartClusteringRequest;
 import edu.ucla.cs.scai.clubsp.messages.StartGenerationRequest;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 /**
@@ -44,8 +44,8 @@ public class GeneratorStarter {
         }
 
         try (Socket s = new Socket(args[0], port);
-                ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());) {
-            out.writeObject(new StartGenerationRequest(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), 
+                MessageOutputStream out = new MessageOutputStream(s.getOutputStream());) {
+            out.writeMessage(new StartGenerationRequest(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), 
                     Double.parseDouble(args[5]), Integer.parseInt(args[6])));
         } catch (Exception e) {
             e.printStackTrace();
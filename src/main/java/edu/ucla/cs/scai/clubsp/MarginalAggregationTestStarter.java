@@ -15,9 +15,9 @@
  */
 package edu.ucla.cs.scai.clubsp;
 
+import edu.ucla.cs.scai.clubsp.messages.MessageOutputStream;
 import edu.ucla.cs.scai.clubsp.messages.StartClusteringRequest;
 import edu.ucla.cs.scai.clubsp.messages.StartTestMarginalAggregationRequest;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 /**
@@ -40,8 +40,8 @@ public class MarginalAggregationTestStarter {
         }
 
         try (Socket s = new Socket(args[0], port);
-                ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());) {
-            out.writeObject(new StartTestMarginalAggregationRequest(Integer.parseInt(args[2]), Integer.parseInt(args[3])));
+                MessageOutputStream out = new MessageOutputStream(s.getOutputStream());) {
+            out.writeMessage(new StartTestMarginalAggregationRequest(Integer.parseInt(args[2]), Integer.parseInt(args[3])));
         } catch (Exception e) {
             e.printStackTrace();
         }
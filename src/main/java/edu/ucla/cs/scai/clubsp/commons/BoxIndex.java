@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.util.Arrays;
+
+/**
+ * Static bounding volume hierarchy over a set of axis-parallel boxes, used to
+ * find the boxes overlapping a query box without testing all of them. The
+ * hierarchy is built once, by recursively splitting the boxes at the median
+ * of their centers along the dimension where the centers are most spread.
+ * Boxes are identified by their index in the arrays passed to the
+ * constructor.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class BoxIndex {
+
+    static final int LEAF_SIZE = 8;
+
+    final int dimensionality;
+    final int size;
+    final double[][] inf, sup; //the indexed boxes
+    final int[] items; //indexes of the boxes, the boxes of a node are items[nodeFrom..nodeTo-1]
+    double[] nodeInf, nodeSup; //bounds of the nodes, nodeInf[node * dimensionality + k]
+    int[] nodeFrom, nodeTo;
+    int[] nodeLeft, nodeRight; //children of the nodes, -1 for leaves
+    int nNodes;
+    int depth;
+
+    public BoxIndex(double[][] inf, double[][] sup) {
+        this.inf = inf;
+        this.sup = sup;
+        size = inf.length;
+        dimensionality = size == 0 ? 0 : inf[0].length;
+        items = new int[size];
+        for (int i = 0; i < size; i++) {
+            items[i] = i;
+        }
+        int maxNodes = Math.max(1, 2 * size); //each leaf has at least one box
+        nodeInf = new double[maxNodes * dimensionality];
+        nodeSup = new double[maxNodes * dimensionality];
+        nodeFrom = new int[maxNodes];
+        nodeTo = new int[maxNodes];
+        nodeLeft = new int[maxNodes];
+        nodeRight = new int[maxNodes];
+        build(0, size, 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //creates the node of the boxes items[from..to-1] and its descendants, and returns its index
+    private int build(int from, int to, int level) {
+        int node = nNodes++;
+        depth = Math.max(depth, level);
+        nodeFrom[node] = from;
+        nodeTo[node] = to;
+        nodeLeft[node] = -1;
+        nodeRight[node] = -1;
+        int offset = node * dimensionality;
+        for (int k = 0; k < dimensionality; k++) {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int j = from; j < to; j++) {
+                lo = Math.min(lo, inf[items[j]][k]);
+                hi = Math.max(hi, sup[items[j]][k]);
+            }
+            nodeInf[offset + k] = lo;
+            nodeSup[offset + k] = hi;
+        }
+        if (to - from <= LEAF_SIZE) {
+            return node;
+        }
+        //the boxes are split along the dimension with the largest spread of the centers
+        int splitDimension = 0;
+        double maxSpread = -1;
+        for (int k = 0; k < dimensionality; k++) {
+            double lo = Double.POSITIVE_INFINITY;
+            double hi = Double.NEGATIVE_INFINITY;
+            for (int j = from; j < to; j++) {
+                double c = center(items[j], k);
+                lo = Math.min(lo, c);
+                hi = Math.max(hi, c);
+            }
+            if (hi - lo > maxSpread) {
+                maxSpread = hi - lo;
+                splitDimension = k;
+            }
+        }
+        int mid = (from + to) >>> 1;
+        select(from, to - 1, mid, splitDimension);
+        nodeLeft[node] = build(from, mid, level + 1);
+        nodeRight[node] = build(mid, to, level + 1);
+        return node;
+    }
+
+    private double center(int item, int k) {
+        return 0.5 * (inf[item][k] + sup[item][k]);
+    }
+
+    //reorders items[left..right] so that items[k] has the center it would have if they were sorted along the dimension,
+    //with smaller centers before it and larger centers after it
+    private void select(int left, int right, int k, int dimension) {
+        while (left < right) {
+            double pivot = center(items[(left + right) >>> 1], dimension);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (center(items[i], dimension) < pivot) {
+                    i++;
+                }
+                while (center(items[j], dimension) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = items[i];
+                    items[i] = items[j];
+                    items[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    //returns the indexes of the boxes overlapping the query box, in increasing order
+    //boxes sharing only their border with the query box are considered overlapping
+    public int[] query(double[] qInf, double[] qSup) {
+        if (size == 0) {
+            return new int[0];
+        }
+        int[] res = new int[size];
+        int n = 0;
+        int[] stack = new int[depth + 1];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!overlaps(nodeInf, nodeSup, node * dimensionality, qInf, qSup)) {
+                continue;
+            }
+            if (nodeLeft[node] == -1) {
+                for (int j = nodeFrom[node]; j < nodeTo[node]; j++) {
+                    int item = items[j];
+                    if (overlaps(inf[item], sup[item], qInf, qSup)) {
+                        res[n++] = item;
+                    }
+                }
+            } else {
+                stack[top++] = nodeRight[node];
+                stack[top++] = nodeLeft[node];
+            }
+        }
+        res = Arrays.copyOf(res, n);
+        Arrays.sort(res);
+        return res;
+    }
+
+    //returns the indexes of the boxes overlapping the range, in increasing order
+    public int[] query(Range r) {
+        double[] qInf = new double[dimensionality];
+        double[] qSup = new double[dimensionality];
+        for (int k = 0; k < dimensionality; k++) {
+            qInf[k] = r.inf[k];
+            qSup[k] = r.sup[k];
+        }
+        return query(qInf, qSup);
+    }
+
+    //writes into res the indexes of the boxes containing the point, in increasing order, and returns their number
+    //res must have length at least size()
+    public int query(int[] p, int[] res) {
+        if (size == 0) {
+            return 0;
+        }
+        int n = 0;
+        int[] stack = new int[depth + 1];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!contains(nodeInf, nodeSup, node * dimensionality, p)) {
+                continue;
+            }
+            if (nodeLeft[node] == -1) {
+                for (int j = nodeFrom[node]; j < nodeTo[node]; j++) {
+                    int item = items[j];
+                    if (contains(inf[item], sup[item], 0, p)) {
+                        res[n++] = item;
+                    }
+                }
+            } else {
+                stack[top++] = nodeRight[node];
+                stack[top++] = nodeLeft[node];
+            }
+        }
+        Arrays.sort(res, 0, n);
+        return n;
+    }
+
+    private boolean contains(double[] bInf, double[] bSup, int offset, int[] p) {
+        for (int k = 0; k < dimensionality; k++) {
+            if (bInf[offset + k] > p[k] || bSup[offset + k] < p[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean overlaps(double[] bInf, double[] bSup, int offset, double[] qInf, double[] qSup) {
+        for (int k = 0; k < dimensionality; k++) {
+            if (bInf[offset + k] > qSup[k] || bSup[offset + k] < qInf[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean overlaps(double[] bInf, double[] bSup, double[] qInf, double[] qSup) {
+        return overlaps(bInf, bSup, 0, qInf, qSup);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the checkpoints of the executions on a background thread, so that
+ * the split pipeline is not stalled by the disk. A checkpoint is written to a
+ * temporary file, which is renamed when complete: a checkpoint file is never
+ * found partially written. The checkpoints are written in the directory set
+ * with the system property clubsp.checkpointDir, by default the current
+ * directory of the master and the data set directory of the workers.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class CheckpointWriter {
+
+    static final String DIRECTORY = System.getProperty("clubsp.checkpointDir");
+    static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CheckpointWriter");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    //the content of a checkpoint, written by the background thread
+    public interface Content {
+
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    //notified by the background thread after a write
+    public interface Listener {
+
+        void checkpointWritten(boolean written);
+    }
+
+    public static File getFile(String defaultDirectory, String name) {
+        return new File(DIRECTORY != null ? DIRECTORY : defaultDirectory, name);
+    }
+
+    //the listener is notified after the file has been renamed, or after the write failed
+    public static void write(final File file, final Content content, final Listener listener) {
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                File tmp = new File(file.getPath() + ".tmp");
+                try {
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                        content.writeTo(out);
+                    }
+                    if (!tmp.renameTo(file)) {
+                        file.delete();
+                        if (!tmp.renameTo(file)) {
+                            throw new IOException("Cannot rename " + tmp + " to " + file);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error writing the checkpoint " + file + ": " + e);
+                    e.printStackTrace();
+                    tmp.delete();
+                    listener.checkpointWritten(false);
+                    return;
+                }
+                System.out.println("Checkpoint " + file + " written in " + (System.currentTimeMillis() - start) + " msec (" + file.length() + " bytes)");
+                listener.checkpointWritten(true);
+            }
+        });
+    }
+
+    //the files of the checkpoints no more needed are deleted by the same thread, after the pending writes
+    public static void delete(final File file) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    //runs the task after the pending writes, and after their listeners
+    public static void execute(Runnable task) {
+        WRITER.execute(task);
+    }
+}
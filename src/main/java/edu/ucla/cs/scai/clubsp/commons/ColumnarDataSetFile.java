@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.StringTokenizer;
+
+/**
+ * Binary columnar representation of a data set partition.
+ *
+ * The file starts with a header (magic number, version, dimensionality,
+ * number of points, and the minimum and maximum coordinate of every
+ * dimension), followed by one column of int values for each dimension. All
+ * the values are big-endian. Coordinates are stored unscaled, the scale factor
+ * of the execution is applied when the columns are read.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class ColumnarDataSetFile implements Closeable {
+
+    public static final int MAGIC = 0x434C4250; //"CLBP"
+    public static final int VERSION = 1;
+
+    RandomAccessFile file;
+    FileChannel channel;
+    int dimensionality;
+    int size;
+    int[] inf, sup; //unscaled minimum and maximum coordinates
+
+    private ColumnarDataSetFile(String fileName) throws IOException {
+        file = new RandomAccessFile(fileName, "r");
+        channel = file.getChannel();
+        try {
+            if (file.readInt() != MAGIC) {
+                throw new IOException(fileName + " is not a columnar data set file");
+            }
+            int version = file.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of columnar data set file " + fileName);
+            }
+            dimensionality = file.readInt();
+            size = file.readInt();
+            inf = new int[dimensionality];
+            sup = new int[dimensionality];
+            for (int i = 0; i < dimensionality; i++) {
+                inf[i] = file.readInt();
+            }
+            for (int i = 0; i < dimensionality; i++) {
+                sup[i] = file.readInt();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    //only the header is read, columns are mapped when they are requested
+    public static ColumnarDataSetFile open(String fileName) throws IOException {
+        return new ColumnarDataSetFile(fileName);
+    }
+
+    //the format is detected from the first four bytes of the file
+    public static boolean isColumnar(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static long headerLength(int dimensionality) {
+        return 4 * (4 + 2L * dimensionality);
+    }
+
+    public static int scale(int coord, double scaleFactor) {
+        return (int) (coord / scaleFactor + 0.5);
+    }
+
+    public int getDimensionality() {
+        return dimensionality;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    //scaling is monotonic, therefore the scaled domain is obtained from the header
+    public Range getDomain(double scaleFactor) {
+        int[] scaledInf = new int[dimensionality];
+        int[] scaledSup = new int[dimensionality];
+        for (int i = 0; i < dimensionality; i++) {
+            scaledInf[i] = scale(inf[i], scaleFactor);
+            scaledSup[i] = scale(sup[i], scaleFactor);
+        }
+        return new Range(scaledInf, scaledSup);
+    }
+
+    //the column is read through a read-only memory mapping of the file
+    //scale is applied also with factor 1, as in getDomain and in the text loader, since it rounds negative coordinates
+    public void readColumn(int dimension, double scaleFactor, int[] dest) throws IOException {
+        long position = headerLength(dimensionality) + 4L * size * dimension;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * size);
+        buffer.asIntBuffer().get(dest, 0, size);
+        for (int j = 0; j < size; j++) {
+            dest[j] = scale(dest[j], scaleFactor);
+        }
+    }
+
+    public int[] readColumn(int dimension, double scaleFactor) throws IOException {
+        int[] column = new int[size];
+        readColumn(dimension, scaleFactor, column);
+        return column;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    //converts a text data set (one point per line, coordinates separated by commas, spaces or tabs)
+    //the text file is read twice: the first pass computes the header, the second one fills the columns
+    public static void convert(String textFileName, String columnarFileName) throws IOException {
+        int dimensionality = 0;
+        int size = 0;
+        int[] inf = null;
+        int[] sup = null;
+        try (BufferedReader in = new BufferedReader(new FileReader(textFileName), 1 << 20)) {
+            String l = in.readLine();
+            if (l != null && l.trim().length() > 0) {
+                dimensionality = new StringTokenizer(l, ", \t").countTokens();
+            }
+            inf = new int[dimensionality];
+            sup = new int[dimensionality];
+            for (int i = 0; i < dimensionality; i++) {
+                inf[i] = Integer.MAX_VALUE;
+                sup[i] = Integer.MIN_VALUE;
+            }
+            while (l != null && l.trim().length() > 0) {
+                StringTokenizer st = new StringTokenizer(l, ", \t");
+                for (int i = 0; i < dimensionality; i++) {
+                    int c = Integer.parseInt(st.nextToken());
+                    inf[i] = Math.min(c, inf[i]);
+                    sup[i] = Math.max(c, sup[i]);
+                }
+                size++;
+                l = in.readLine();
+            }
+        }
+        if (4L * size > Integer.MAX_VALUE) {
+            throw new IOException("Too many points in " + textFileName + " for a single columnar file: " + size);
+        }
+        try (RandomAccessFile out = new RandomAccessFile(columnarFileName, "rw");
+                BufferedReader in = new BufferedReader(new FileReader(textFileName), 1 << 20)) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate((int) headerLength(dimensionality));
+            header.putInt(MAGIC).putInt(VERSION).putInt(dimensionality).putInt(size);
+            for (int i = 0; i < dimensionality; i++) {
+                header.putInt(inf[i]);
+            }
+            for (int i = 0; i < dimensionality; i++) {
+                header.putInt(sup[i]);
+            }
+            header.flip();
+            channel.write(header, 0);
+            IntBuffer[] columns = new IntBuffer[dimensionality];
+            for (int i = 0; i < dimensionality; i++) {
+                columns[i] = channel.map(FileChannel.MapMode.READ_WRITE, headerLength(dimensionality) + 4L * size * i, 4L * size).asIntBuffer();
+            }
+            for (int j = 0; j < size; j++) {
+                StringTokenizer st = new StringTokenizer(in.readLine(), ", \t");
+                for (int i = 0; i < dimensionality; i++) {
+                    columns[i].put(Integer.parseInt(st.nextToken()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks of several executions on a fixed number of threads. Every
+ * execution submits its tasks to its own queue, and the threads serve the
+ * queues in turn, one task at a time, so that an execution with many tasks
+ * ready does not delay the tasks of the others.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class FairScheduler {
+
+    final ArrayDeque<Queue> readyQueues = new ArrayDeque<>(); //the queues with tasks, in the order they will be served
+
+    public FairScheduler(int threads, String name) {
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(name + "-" + (i + 1)) {
+                @Override
+                public void run() {
+                    while (true) {
+                        Runnable task;
+                        try {
+                            task = next();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        try {
+                            task.run();
+                        } catch (Exception e) {
+                            System.out.println("Error executing a task: " + e);
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            t.start();
+        }
+    }
+
+    //a new queue, which is served as soon as it receives a task
+    public Queue newQueue() {
+        return new Queue();
+    }
+
+    synchronized Runnable next() throws InterruptedException {
+        while (readyQueues.isEmpty()) {
+            wait();
+        }
+        Queue q = readyQueues.poll();
+        Runnable task = q.tasks.poll();
+        if (q.tasks.isEmpty()) {
+            q.ready = false;
+        } else {
+            readyQueues.add(q); //the queue goes back at the end of the round
+        }
+        return task;
+    }
+
+    public class Queue implements Executor {
+
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        boolean ready;
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (FairScheduler.this) {
+                tasks.add(task);
+                if (!ready) {
+                    ready = true;
+                    readyQueues.add(this);
+                    FairScheduler.this.notify();
+                }
+            }
+        }
+
+        //the tasks not yet started are discarded
+        public void clear() {
+            synchronized (FairScheduler.this) {
+                tasks.clear();
+                if (ready) {
+                    ready = false;
+                    readyQueues.remove(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the cluster labels of the points of a partition, in file order.
+ *
+ * The labels are encoded into large buffers, and a full buffer is written by
+ * a background thread while the next one is filled, so the computation of the
+ * labels is not stalled by the disk. The format is chosen with the system
+ * property clubsp.labels.format: text (the default, one label per line),
+ * int (4 bytes per label) or short (2 bytes per label), or binary, which
+ * uses short when all the labels fit in it and int otherwise. The binary
+ * formats have no header, and their values are big-endian, as the columnar
+ * data set files; the extension of the file tells the format.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class LabelWriter implements Closeable {
+
+    public static final int TEXT = 0;
+    public static final int INT = 1;
+    public static final int SHORT = 2;
+    public static final String FORMAT = System.getProperty("clubsp.labels.format", "text");
+    static final int BUFFER_SIZE = 4 << 20;
+
+    final int format;
+    final FileOutputStream file;
+    final FileChannel channel;
+    ByteBuffer buffer; //being filled
+    ByteBuffer spare; //being written, or ready to be filled
+    final ExecutorService writer;
+    Future<?> pendingWrite;
+    final byte[] digits = new byte[12];
+
+    public LabelWriter(String fileName, int format) throws IOException {
+        this.format = format;
+        file = new FileOutputStream(fileName);
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        spare = ByteBuffer.allocate(BUFFER_SIZE);
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LabelWriter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    //opens the file with the format configured by clubsp.labels.format
+    //the labels will be between 0 and maxLabel, and the format extension is appended to fileName
+    public static LabelWriter open(String fileName, int maxLabel) throws IOException {
+        int format = getFormat(FORMAT, maxLabel);
+        return new LabelWriter(fileName + getExtension(format), format);
+    }
+
+    public static int getFormat(String name, int maxLabel) {
+        switch (name) {
+            case "text":
+                return TEXT;
+            case "int":
+                return INT;
+            case "short":
+                if (maxLabel > Short.MAX_VALUE) {
+                    throw new IllegalArgumentException("Label " + maxLabel + " does not fit in a short");
+                }
+                return SHORT;
+            case "binary":
+                return maxLabel > Short.MAX_VALUE ? INT : SHORT;
+            default:
+                throw new IllegalArgumentException("Unknown label format " + name);
+        }
+    }
+
+    public static String getExtension(int format) {
+        switch (format) {
+            case INT:
+                return ".int";
+            case SHORT:
+                return ".short";
+            default:
+                return "";
+        }
+    }
+
+    public void write(int label) throws IOException {
+        if (buffer.remaining() < digits.length) {
+            flushBuffer();
+        }
+        switch (format) {
+            case INT:
+                buffer.putInt(label);
+                break;
+            case SHORT:
+                buffer.putShort((short) label);
+                break;
+            default:
+                writeText(label);
+        }
+    }
+
+    public void write(int[] labels, int from, int to) throws IOException {
+        for (int j = from; j < to; j++) {
+            write(labels[j]);
+        }
+    }
+
+    //the label is formatted directly into the buffer, followed by a line separator
+    private void writeText(int label) {
+        int n = digits.length;
+        long v = label;
+        boolean negative = v < 0;
+        if (negative) {
+            v = -v;
+        }
+        do {
+            digits[--n] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        if (negative) {
+            digits[--n] = '-';
+        }
+        buffer.put(digits, n, digits.length - n);
+        buffer.put((byte) '\n');
+    }
+
+    //hands the buffer to the background thread, after the previous write has completed
+    private void flushBuffer() throws IOException {
+        waitPendingWrite();
+        final ByteBuffer full = buffer;
+        buffer = spare;
+        spare = full;
+        full.flip();
+        pendingWrite = writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                while (full.hasRemaining()) {
+                    channel.write(full);
+                }
+                full.clear();
+                return null;
+            }
+        });
+    }
+
+    private void waitPendingWrite() throws IOException {
+        if (pendingWrite == null) {
+            return;
+        }
+        try {
+            pendingWrite.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pendingWrite = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+            waitPendingWrite();
+        } finally {
+            writer.shutdown();
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Allocates the sums of the marginal distributions. By default they are on the
+ * heap. With the system property clubsp.worker.offHeapMarginals, the budget in
+ * MB of the worker, they are stored in direct buffers, taken from slabs whose
+ * capacity is a power of two. The slabs of the released marginals are kept and
+ * reused, therefore new direct memory is reserved only when no free slab of the
+ * required size exists. Once the budget is exhausted, the sums are allocated on
+ * the heap.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class MarginalAllocator {
+
+    static final long BUDGET = Long.getLong("clubsp.worker.offHeapMarginals", 0) << 20;
+    static final MarginalAllocator OFF_HEAP = BUDGET > 0 ? new MarginalAllocator(BUDGET) : null;
+    static final int MIN_SLAB_CLASS = 10; //the smallest slabs contain 1024 doubles
+    static final double[] ZEROS = new double[4096];
+
+    final long budget;
+    static final int SLAB_CLASSES = 28; //up to 1 GB
+    final ArrayList<ArrayDeque<DoubleBuffer>> freeSlabs = new ArrayList<>(SLAB_CLASSES); //the free slabs of capacity 2^i are in freeSlabs.get(i)
+    long reservedBytes; //the bytes of all the slabs, both used and free
+    long usedBytes;
+    long peakUsedBytes;
+    long heapAllocations; //the allocations that did not fit in the budget
+
+    MarginalAllocator(long budget) {
+        this.budget = budget;
+        for (int i = 0; i < SLAB_CLASSES; i++) {
+            freeSlabs.add(new ArrayDeque<DoubleBuffer>());
+        }
+    }
+
+    public static boolean isOffHeap() {
+        return OFF_HEAP != null;
+    }
+
+    //returns a buffer with at least size zeroed doubles
+    public static DoubleBuffer allocate(int size) {
+        if (OFF_HEAP != null) {
+            DoubleBuffer slab = OFF_HEAP.allocateSlab(size);
+            if (slab != null) {
+                zero(slab, size);
+                return slab;
+            }
+        }
+        return DoubleBuffer.allocate(size);
+    }
+
+    //the buffer must not be used after it has been released
+    public static void release(DoubleBuffer buffer) {
+        if (OFF_HEAP != null && buffer.isDirect()) {
+            OFF_HEAP.releaseSlab(buffer);
+        }
+    }
+
+    public static String getStatistics() {
+        if (OFF_HEAP == null) {
+            return "Marginals allocated on the heap";
+        }
+        synchronized (OFF_HEAP) {
+            return "Off-heap marginals: " + OFF_HEAP.reservedBytes + " bytes reserved out of " + OFF_HEAP.budget
+                    + ", " + OFF_HEAP.usedBytes + " in use, peak " + OFF_HEAP.peakUsedBytes
+                    + ", allocations on the heap after the budget was exhausted: " + OFF_HEAP.heapAllocations;
+        }
+    }
+
+    static int slabClass(int size) {
+        return Math.max(MIN_SLAB_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1)));
+    }
+
+    synchronized DoubleBuffer allocateSlab(int size) {
+        int c = slabClass(size);
+        if (c >= SLAB_CLASSES) {
+            heapAllocations++;
+            return null;
+        }
+        long bytes = 8L << c;
+        DoubleBuffer slab = freeSlabs.get(c).poll();
+        if (slab == null) {
+            if (reservedBytes + bytes > budget) {
+                heapAllocations++;
+                return null;
+            }
+            slab = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            reservedBytes += bytes;
+        }
+        usedBytes += bytes;
+        peakUsedBytes = Math.max(peakUsedBytes, usedBytes);
+        return slab;
+    }
+
+    synchronized void releaseSlab(DoubleBuffer slab) {
+        int c = slabClass(slab.capacity());
+        freeSlabs.get(c).push(slab);
+        usedBytes -= 8L << c;
+    }
+
+    //a reused slab contains the values of its previous marginal
+    static void zero(DoubleBuffer buffer, int size) {
+        DoubleBuffer b = buffer.duplicate();
+        b.clear();
+        while (b.position() < size) {
+            b.put(ZEROS, 0, Math.min(ZEROS.length, size - b.position()));
+        }
+    }
+}
@@ -15,7 +15,13 @@
  */
 package edu.ucla.cs.scai.clubsp.commons;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.DoubleBuffer;
 
 /**
  *
@@ -23,69 +29,245 @@ import java.io.Serializable;
  */
 public class MarginalDistribution implements Serializable {
 
-    public double[][] sum;
-    public int[] count;
+    //sum.get(pos * dimensionality + k) is the sum of the k-th coordinates of the points in position pos
+    //the buffer, allocated by MarginalAllocator, can be off-heap and larger than needed
+    public transient DoubleBuffer sum;
+    public transient int[] count;
+    public transient int dimensionality;
+    //below this fraction of non-empty positions, the marginal is written in sparse format
+    static final double SPARSE_FILL_RATIO = 0.5;
+    static final int DENSE = 0;
+    static final int SPARSE = 1;
 
-    public MarginalDistribution(int width) {
-        sum = new double[width][];
+    MarginalDistribution() {
+    }
+
+    public MarginalDistribution(int width, int dimensionality) {
+        this.dimensionality = dimensionality;
+        sum = MarginalAllocator.allocate(width * dimensionality);
         count = new int[width];
     }
 
     public void add(int[] p, int position) {
         count[position]++;
-        if (count[position] == 1) {
-            sum[position] = new double[p.length];
-        }
-        for (int i = 0; i < sum[position].length; i++) {
-            sum[position][i] += p[i];
+        int offset = position * dimensionality;
+        if (sum.hasArray()) { //the marginals are built point by point, the array is updated directly
+            double[] s = sum.array();
+            for (int i = 0; i < dimensionality; i++) {
+                s[offset + i] += p[i];
+            }
+        } else {
+            for (int i = 0; i < dimensionality; i++) {
+                sum.put(offset + i, sum.get(offset + i) + p[i]);
+            }
         }
     }
 
     public void add(MarginalDistribution m) {
+        if (sum.hasArray() && m.sum.hasArray()) {
+            double[] s = sum.array();
+            double[] ms = m.sum.array();
+            for (int i = 0; i < m.count.length; i++) {
+                if (m.count[i] > 0) {
+                    count[i] += m.count[i];
+                    int offset = i * dimensionality;
+                    for (int k = offset; k < offset + dimensionality; k++) {
+                        s[k] += ms[k];
+                    }
+                }
+            }
+            return;
+        }
         for (int i = 0; i < m.count.length; i++) {
             if (m.count[i] > 0) {
-                if (count[i] == 0) {
-                    sum[i] = new double[m.sum[i].length];
-                }
                 count[i] += m.count[i];
-                for (int k = 0; k < sum[i].length; k++) {
-                    sum[i][k] += m.sum[i][k];
+                int offset = i * dimensionality;
+                for (int k = offset; k < offset + dimensionality; k++) {
+                    sum.put(k, sum.get(k) + m.sum.get(k));
                 }
             }
         }
     }
 
     public void sub(MarginalDistribution m) {
+        if (sum.hasArray() && m.sum.hasArray()) {
+            double[] s = sum.array();
+            double[] ms = m.sum.array();
+            for (int i = 0; i < m.count.length; i++) {
+                if (m.count[i] > 0) {
+                    count[i] -= m.count[i];
+                    int offset = i * dimensionality;
+                    for (int k = offset; k < offset + dimensionality; k++) {
+                        s[k] -= ms[k];
+                    }
+                }
+            }
+            return;
+        }
         for (int i = 0; i < m.count.length; i++) {
             if (m.count[i] > 0) {
                 count[i] -= m.count[i];
-                for (int k = 0; k < sum[i].length; k++) {
-                    sum[i][k] -= m.sum[i][k];
+                int offset = i * dimensionality;
+                for (int k = offset; k < offset + dimensionality; k++) {
+                    sum.put(k, sum.get(k) - m.sum.get(k));
                 }
             }
         }
     }
 
+    //gives the buffers back to the allocator, the marginal must not be used anymore
+    public void release() {
+        MarginalAllocator.release(sum);
+        sum = null;
+    }
+
     public MarginalDistribution getCopy() {
         return getCopy(0, count.length - 1);
     }
 
     public MarginalDistribution getCopy(int beginIndex, int endIndex) {
-        MarginalDistribution copy = new MarginalDistribution(endIndex - beginIndex + 1);
+        MarginalDistribution copy = new MarginalDistribution(endIndex - beginIndex + 1, dimensionality);
         System.arraycopy(count, beginIndex, copy.count, 0, copy.count.length);
-        //for (int j=beginIndex; j<count.length; j++) {
-        //    copy.count[j-beginIndex]=count[j];
-        //}
-        for (int j = beginIndex; j <= endIndex; j++) {
-            if (count[j] > 0) {
-                copy.sum[j - beginIndex] = new double[sum[j].length];
-                System.arraycopy(sum[j], 0, copy.sum[j - beginIndex], 0, sum[j].length);
-                //for (int k = 0; k < sum[j].length; k++) {
-                //    copy.sum[j - beginIndex][k] = sum[j][k];
-                //}
+        copyValues(sum, beginIndex * dimensionality, copy.sum, copy.count.length * dimensionality);
+        return copy;
+    }
+
+    //copies length values starting at from in source to the beginning of target
+    //the positions of the buffers are not changed, since they are shared
+    static void copyValues(DoubleBuffer source, int from, DoubleBuffer target, int length) {
+        copyValues(source, from, target, 0, length);
+    }
+
+    static void copyValues(DoubleBuffer source, int from, DoubleBuffer target, int to, int length) {
+        DoubleBuffer s = source.duplicate();
+        s.limit(from + length).position(from);
+        DoubleBuffer t = target.duplicate();
+        t.clear();
+        t.position(to);
+        t.put(s);
+    }
+
+    //the bytes taken by the arrays of the marginal
+    //the capacity of the buffer is counted, since an off-heap slab can be larger than the marginal
+    public long getSizeInBytes() {
+        return 4L * count.length + 8L * sum.capacity();
+    }
+
+    //writes the marginal in the format used on the network
+    //dense format: all the counts, followed by the sums of the non-empty positions
+    //sparse format: for each non-empty position, the difference from the previous
+    //non-empty position and the count (both as variable-length integers), followed by the sums
+    public void writeTo(DataOutput out) throws IOException {
+        writeCountsAndSums(out);
+    }
+
+    //reads a marginal written with writeTo
+    public static MarginalDistribution read(DataInput in) throws IOException {
+        MarginalDistribution m = new MarginalDistribution();
+        m.readCountsAndSums(in);
+        return m;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeCountsAndSums(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        readCountsAndSums(in);
+    }
+
+    final void writeCountsAndSums(DataOutput out) throws IOException {
+        int nonEmpty = 0;
+        for (int c : count) {
+            if (c > 0) {
+                nonEmpty++;
+            }
+        }
+        out.writeInt(dimensionality);
+        out.writeInt(count.length);
+        if (nonEmpty < SPARSE_FILL_RATIO * count.length) {
+            out.writeByte(SPARSE);
+            out.writeInt(nonEmpty);
+            int previous = -1;
+            for (int i = 0; i < count.length; i++) {
+                if (count[i] > 0) {
+                    writeVarInt(out, i - previous);
+                    writeVarInt(out, count[i]);
+                    previous = i;
+                }
+            }
+        } else {
+            out.writeByte(DENSE);
+            for (int c : count) {
+                out.writeInt(c);
+            }
+        }
+        writeNonEmpty(out, sum);
+    }
+
+    final void readCountsAndSums(DataInput in) throws IOException {
+        dimensionality = in.readInt();
+        count = new int[in.readInt()];
+        int format = in.readByte();
+        if (format == SPARSE) {
+            int nonEmpty = in.readInt();
+            int position = -1;
+            for (int j = 0; j < nonEmpty; j++) {
+                position += readVarInt(in);
+                count[position] = readVarInt(in);
+            }
+        } else if (format == DENSE) {
+            for (int i = 0; i < count.length; i++) {
+                count[i] = in.readInt();
+            }
+        } else {
+            throw new IOException("Unknown marginal format " + format);
+        }
+        sum = DoubleBuffer.allocate(count.length * dimensionality); //the received marginals are never released
+        readNonEmpty(in, sum);
+    }
+
+    static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    //writes the values associated with the non-empty positions
+    void writeNonEmpty(DataOutput out, DoubleBuffer values) throws IOException {
+        for (int i = 0; i < count.length; i++) {
+            if (count[i] > 0) {
+                for (int k = i * dimensionality; k < (i + 1) * dimensionality; k++) {
+                    out.writeDouble(values.get(k));
+                }
+            }
+        }
+    }
+
+    void readNonEmpty(DataInput in, DoubleBuffer values) throws IOException {
+        for (int i = 0; i < count.length; i++) {
+            if (count[i] > 0) {
+                for (int k = i * dimensionality; k < (i + 1) * dimensionality; k++) {
+                    values.put(k, in.readDouble());
+                }
             }
         }
-        return copy;
     }
 
 }
@@ -5,53 +5,98 @@
  */
 package edu.ucla.cs.scai.clubsp.commons;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.DoubleBuffer;
+
 /**
  *
  * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
  */
 public class MarginalDistributionWithSquares extends MarginalDistribution {
 
-    public double[][] sumSqr;
+    public transient DoubleBuffer sumSqr; //same layout as sum
 
-    public MarginalDistributionWithSquares(int width) {
-        super(width);
-        sumSqr = new double[width][];
+    public MarginalDistributionWithSquares(int width, int dimensionality) {
+        super(width, dimensionality);
+        sumSqr = MarginalAllocator.allocate(width * dimensionality);
     }
 
     @Override
     public void add(int[] p, int position) {
-        super.add(p, position);
-        if (count[position] == 1) {
-            sumSqr[position] = new double[p.length];
-        }
-        for (int i = 0; i < sumSqr[position].length; i++) {
-            sumSqr[position][i] += 1.0 * p[i] * p[i];
+        count[position]++;
+        int offset = position * dimensionality;
+        if (sum.hasArray() && sumSqr.hasArray()) { //the marginals are built point by point, the arrays are updated directly
+            double[] s = sum.array();
+            double[] sq = sumSqr.array();
+            for (int i = 0; i < dimensionality; i++) {
+                s[offset + i] += p[i];
+                sq[offset + i] += 1.0 * p[i] * p[i];
+            }
+        } else {
+            for (int i = 0; i < dimensionality; i++) {
+                sum.put(offset + i, sum.get(offset + i) + p[i]);
+                sumSqr.put(offset + i, sumSqr.get(offset + i) + 1.0 * p[i] * p[i]);
+            }
         }
     }
 
     public void add(MarginalDistributionWithSquares m) {
+        if (sum.hasArray() && sumSqr.hasArray() && m.sum.hasArray() && m.sumSqr.hasArray()) {
+            double[] s = sum.array();
+            double[] sq = sumSqr.array();
+            double[] ms = m.sum.array();
+            double[] msq = m.sumSqr.array();
+            for (int i = 0; i < m.count.length; i++) {
+                if (m.count[i] > 0) {
+                    count[i] += m.count[i];
+                    int offset = i * dimensionality;
+                    for (int k = offset; k < offset + dimensionality; k++) {
+                        s[k] += ms[k];
+                        sq[k] += msq[k];
+                    }
+                }
+            }
+            return;
+        }
         for (int i = 0; i < m.count.length; i++) {
             if (m.count[i] > 0) {
-                if (count[i] == 0) {
-                    sum[i] = new double[m.sum[i].length];
-                    sumSqr[i] = new double[m.sum[i].length];
-                }
                 count[i] += m.count[i];
-                for (int k = 0; k < sum[i].length; k++) {
-                    sum[i][k] += m.sum[i][k];
-                    sumSqr[i][k] += m.sumSqr[i][k];
+                int offset = i * dimensionality;
+                for (int k = offset; k < offset + dimensionality; k++) {
+                    sum.put(k, sum.get(k) + m.sum.get(k));
+                    sumSqr.put(k, sumSqr.get(k) + m.sumSqr.get(k));
                 }
             }
         }
     }
 
     public void sub(MarginalDistributionWithSquares m) {
+        if (sum.hasArray() && sumSqr.hasArray() && m.sum.hasArray() && m.sumSqr.hasArray()) {
+            double[] s = sum.array();
+            double[] sq = sumSqr.array();
+            double[] ms = m.sum.array();
+            double[] msq = m.sumSqr.array();
+            for (int i = 0; i < m.count.length; i++) {
+                if (m.count[i] > 0) {
+                    count[i] -= m.count[i];
+                    int offset = i * dimensionality;
+                    for (int k = offset; k < offset + dimensionality; k++) {
+                        s[k] -= ms[k];
+                        sq[k] -= msq[k];
+                    }
+                }
+            }
+            return;
+        }
         for (int i = 0; i < m.count.length; i++) {
             if (m.count[i] > 0) {
                 count[i] -= m.count[i];
-                for (int k = 0; k < sum[i].length; k++) {
-                    sum[i][k] -= m.sum[i][k];
-                    sumSqr[i][k] -= m.sumSqr[i][k];
+                int offset = i * dimensionality;
+                for (int k = offset; k < offset + dimensionality; k++) {
+                    sum.put(k, sum.get(k) - m.sum.get(k));
+                    sumSqr.put(k, sumSqr.get(k) - m.sumSqr.get(k));
                 }
             }
         }
@@ -67,17 +112,10 @@ public class MarginalDistributionWithSquares extends MarginalDistribution {
 
     @Override
     public MarginalDistributionWithSquares getCopy(int beginIndex, int endIndex) {
-        MarginalDistributionWithSquares copy = new MarginalDistributionWithSquares(endIndex - beginIndex + 1);
+        MarginalDistributionWithSquares copy = new MarginalDistributionWithSquares(endIndex - beginIndex + 1, dimensionality);
         System.arraycopy(count, beginIndex, copy.count, 0, copy.count.length);
-        for (int j = beginIndex; j <= endIndex; j++) {
-            if (count[j] > 0) {
-                copy.sum[j - beginIndex] = new double[sum[j].length];
-                System.arraycopy(sum[j], 0, copy.sum[j - beginIndex], 0, sum[j].length);
-                copy.sumSqr[j - beginIndex] = new double[sumSqr[j].length];
-                System.arraycopy(sumSqr[j], 0, copy.sumSqr[j - beginIndex], 0, sumSqr[j].length);
-            }
-
-        }
+        copyValues(sum, beginIndex * dimensionality, copy.sum, copy.count.length * dimensionality);
+        copyValues(sumSqr, beginIndex * dimensionality, copy.sumSqr, copy.count.length * dimensionality);
         return copy;
     }
 
@@ -85,4 +123,36 @@ public class MarginalDistributionWithSquares extends MarginalDistribution {
     public MarginalDistributionWithSquares getCopy() {
         return getCopy(0, count.length - 1);
     }
+
+    //a copy in a marginal of the given width, starting at position offset, with the other positions empty
+    public MarginalDistributionWithSquares getCopyInWidth(int width, int offset) {
+        MarginalDistributionWithSquares copy = new MarginalDistributionWithSquares(width, dimensionality);
+        System.arraycopy(count, 0, copy.count, offset, count.length);
+        copyValues(sum, 0, copy.sum, offset * dimensionality, count.length * dimensionality);
+        copyValues(sumSqr, 0, copy.sumSqr, offset * dimensionality, count.length * dimensionality);
+        return copy;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return super.getSizeInBytes() + 8L * sumSqr.capacity();
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        MarginalAllocator.release(sumSqr);
+        sumSqr = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        writeNonEmpty(out, sumSqr);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        sumSqr = DoubleBuffer.allocate(count.length * dimensionality);
+        readNonEmpty(in, sumSqr);
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.commons;
+
+import java.util.Arrays;
+
+/**
+ * Primitive storage of the points of a data set partition, with one int
+ * column for each dimension. Points are stored in the order they appear in
+ * the data set file, therefore the index of a point is also its file
+ * position.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class PointStore {
+
+    int[][] columns; //columns[k][j] is the k-th coordinate of the j-th point
+    int size;
+
+    public PointStore(int dimensionality, int initialCapacity) {
+        columns = new int[dimensionality][Math.max(1, initialCapacity)];
+    }
+
+    //the columns are used without copying them, and must have the same length
+    public PointStore(int[][] columns) {
+        this.columns = columns;
+        size = columns.length == 0 ? 0 : columns[0].length;
+    }
+
+    public void add(int[] p) {
+        if (columns.length > 0 && size == columns[0].length) {
+            int newCapacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * size);
+            for (int k = 0; k < columns.length; k++) {
+                columns[k] = Arrays.copyOf(columns[k], newCapacity);
+            }
+        }
+        for (int k = 0; k < columns.length; k++) {
+            columns[k][size] = p[k];
+        }
+        size++;
+    }
+
+    //appends the first n points of a block of columns
+    public void addAll(int[][] points, int n) {
+        if (columns.length > 0 && size + n > columns[0].length) {
+            int newCapacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * size, (long) size + n));
+            for (int k = 0; k < columns.length; k++) {
+                columns[k] = Arrays.copyOf(columns[k], newCapacity);
+            }
+        }
+        for (int k = 0; k < columns.length; k++) {
+            System.arraycopy(points[k], 0, columns[k], size, n);
+        }
+        size += n;
+    }
+
+    public void trimToSize() {
+        for (int k = 0; k < columns.length; k++) {
+            if (columns[k].length != size) {
+                columns[k] = Arrays.copyOf(columns[k], size);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDimensionality() {
+        return columns.length;
+    }
+
+    public int get(int index, int dimension) {
+        return columns[dimension][index];
+    }
+
+    public int[] getColumn(int dimension) {
+        return columns[dimension];
+    }
+
+    //copies the coordinates of the point into p, which must have length equal to the dimensionality
+    public void get(int index, int[] p) {
+        for (int k = 0; k < columns.length; k++) {
+            p[k] = columns[k][index];
+        }
+    }
+}
@@ -15,109 +15,154 @@
  */
 package edu.ucla.cs.scai.clubsp.master;
 
+import edu.ucla.cs.scai.clubsp.commons.BoxIndex;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 
 /**
+ * Priority queue of the admissible pairs of clusters, ordered by the increase
+ * of SSQ their merge would produce. When two clusters are merged, their pairs
+ * are not removed from the heap: the merged clusters are marked, and their
+ * pairs are discarded when they reach the top. The pairs of every cluster are
+ * also kept in a list, so that the pairs of the new cluster are built from
+ * the pairs of the merged ones without scanning the heap.
  *
  * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
  */
 public class ClusterBlocksHeap {
 
     ClusterPair[] heap;
-    int size = 0;
+    int size = 0; //number of pairs in the heap, including the ones invalidated by a merge
+    int nValidPairs = 0;
     int nClusters = 0;
     Sequence sequence;
     boolean ignoreRadiusCriterion;
+    HashSet<Integer> mergedIds = new HashSet<>(); //the pairs of these clusters are not valid anymore
+    HashMap<Integer, ArrayList<ClusterPair>> pairsOf = new HashMap<>(); //the pairs of each cluster, which can include invalid ones
 
     public ClusterBlocksHeap(ArrayList<MasterClusterBlock> clusters, Sequence sequence, boolean ignoreRadiusCriterion) {
         this.sequence = sequence;
         this.ignoreRadiusCriterion = ignoreRadiusCriterion;
         nClusters = clusters.size();
         ArrayList<ClusterPair> admissiblePairs = new ArrayList<>();
-        for (int i = 0; i < nClusters - 1; i++) {
-            for (int j = i + 1; j < nClusters; j++) {
-                ClusterPair cp = new ClusterPair(clusters.get(i), clusters.get(j), ignoreRadiusCriterion);
-                if (cp.SSQinc != Double.POSITIVE_INFINITY) {
-                    admissiblePairs.add(cp);
+        if (ignoreRadiusCriterion) {
+            for (int i = 0; i < nClusters - 1; i++) {
+                for (int j = i + 1; j < nClusters; j++) {
+                    admissiblePairs.add(new ClusterPair(clusters.get(i), clusters.get(j), ignoreRadiusCriterion));
+                }
+            }
+        } else {
+            //only the pairs whose centroids are near enough can satisfy the radius criterion
+            double[][] boxInf = getCandidateBoxes(clusters, true);
+            double[][] boxSup = getCandidateBoxes(clusters, false);
+            BoxIndex index = new BoxIndex(boxInf, boxSup);
+            for (int i = 0; i < nClusters - 1; i++) {
+                for (int j : index.query(boxInf[i], boxSup[i])) {
+                    if (j > i) {
+                        ClusterPair cp = new ClusterPair(clusters.get(i), clusters.get(j), ignoreRadiusCriterion);
+                        if (cp.SSQinc != Double.POSITIVE_INFINITY) {
+                            admissiblePairs.add(cp);
+                        }
+                    }
                 }
             }
         }
-        heap = new ClusterPair[admissiblePairs.size()];
+        heap = new ClusterPair[Math.max(16, admissiblePairs.size())];
         for (ClusterPair cp : admissiblePairs) {
-            //System.out.println(cp.c1.id+"\t"+cp.c2.id);
             heap[size] = cp;
-            moveUp(size);
             size++;
+            addToPairsOf(cp);
         }
+        nValidPairs = size;
+        heapify();
+    }
+
+    //returns the lower (if lower is true) or upper corners of the boxes around the centroids used to find the candidate pairs
+    //along any dimension, the variance of the merge of c1 and c2 is (n1 * r1^2 + n2 * r2^2) / n + (n1 * n2 / n^2) * delta^2,
+    //where delta is the distance between the centroids, so the radius criterion r <= 2 * (r1 + r2) requires
+    //delta <= 2 * (r1 + r2) * (sqrt(n1 / n2) + sqrt(n2 / n1)), which is at most h1 + h2, with h = 2 * r * (sqrt(n / minN) + sqrt(maxN / n))
+    //so, if the boxes of half-width h around the centroids are disjoint, the pair is not admissible
+    //the radii are enlarged by a small fraction of the coordinates, since the criterion is evaluated with rounding errors
+    static double[][] getCandidateBoxes(ArrayList<MasterClusterBlock> clusters, boolean lower) {
+        int minN = Integer.MAX_VALUE;
+        int maxN = 0;
+        double maxSqr = 0;
+        for (MasterClusterBlock c : clusters) {
+            minN = Math.min(minN, c.globalN);
+            maxN = Math.max(maxN, c.globalN);
+            for (int i = 0; i < c.dimensionality; i++) {
+                maxSqr = Math.max(maxSqr, c.globalSS[i] / c.globalN);
+            }
+        }
+        double slack = 1e-6 * Math.sqrt(maxSqr);
+        double[][] res = new double[clusters.size()][];
+        for (int j = 0; j < clusters.size(); j++) {
+            MasterClusterBlock c = clusters.get(j);
+            double sizeFactor = Math.sqrt(1.0 * c.globalN / minN) + Math.sqrt(1.0 * maxN / c.globalN);
+            res[j] = new double[c.dimensionality];
+            for (int i = 0; i < c.dimensionality; i++) {
+                double h = 2 * (c.getRadius(i, 1) + slack) * sizeFactor * (1 + 1e-9);
+                double centroid = c.globalLS[i] / c.globalN;
+                res[j][i] = lower ? centroid - h : centroid + h;
+            }
+        }
+        return res;
     }
 
     public int size() {
-        return size;
+        return nValidPairs;
     }
 
     public boolean isEmpty() {
-        return size == 0;
+        return nValidPairs == 0;
     }
 
     public ClusterPair peek() {
+        while (size > 0 && !isValid(heap[0])) {
+            removeTop();
+        }
         return heap[0];
     }
 
+    //merges the clusters of the pair on top of the heap, and adds the admissible pairs of the new cluster
+    //the new cluster is paired with the clusters which were paired with any of the two merged clusters
     public MasterClusterBlock updateQueueByMerge() {
-        ClusterPair cp0 = heap[0];
+        ClusterPair cp0 = peek();
+        removeTop();
+        nValidPairs--;
         int id1 = cp0.c1.id;
         int id2 = cp0.c2.id;
-        int insertIndex = 0;
-        int readIndex = 1;
-        int oldSize = size;
         MasterClusterBlock c = MasterClusterBlock.merge(cp0, sequence.next()); //c is the merge of id1 and id2
+        mergedIds.add(id1);
+        mergedIds.add(id2);
+        HashSet<Integer> pairedIds = new HashSet<>();
         ArrayList<ClusterPair> newPairs = new ArrayList<>();
-        size--;
-        while (readIndex < oldSize) {
-            if (heap[readIndex].c1.id == id1 || heap[readIndex].c2.id == id1
-                    || heap[readIndex].c1.id == id2 || heap[readIndex].c2.id == id2) {
-                size--;
-                if (heap[readIndex].c1.id == id1) { //1st cluster of the pair is id1
-                    ClusterPair cp = new ClusterPair(c, heap[readIndex].c2, ignoreRadiusCriterion); //replace the pair with the merge of c and the 2nd cluster of the pair
-                    if (cp.SSQinc != Double.POSITIVE_INFINITY) {
-                        newPairs.add(cp);
-                    }
-                } else if (heap[readIndex].c2.id == id1) { //2nd cluster of the pair is id1
-                    ClusterPair cp = new ClusterPair(c, heap[readIndex].c1, ignoreRadiusCriterion); //replace the pair with the merge of c and the 1st cluster of the pair
-                    if (cp.SSQinc != Double.POSITIVE_INFINITY) {
-                        newPairs.add(cp);
-                    }
-                } else if (heap[readIndex].c1.id == id2) { //1st cluster of the pair is id2
-                    ClusterPair cp = new ClusterPair(c, heap[readIndex].c2, ignoreRadiusCriterion); //replace the pair with the merge of c and the 2nd cluster of the pair
-                    if (cp.SSQinc != Double.POSITIVE_INFINITY) {
-                        newPairs.add(cp);
-                    }
-                } else if (heap[readIndex].c2.id == id2) { //2nd cluster of the pair is id2
-                    ClusterPair cp = new ClusterPair(c, heap[readIndex].c1, ignoreRadiusCriterion); //replace the pair with the merge of c and the 1st cluster of the pair
-                    if (cp.SSQinc != Double.POSITIVE_INFINITY) {
-                        newPairs.add(cp);
+        for (int id : new int[]{id1, id2}) {
+            for (ClusterPair cp : pairsOf.remove(id)) {
+                MasterClusterBlock other = cp.c1.id == id ? cp.c2 : cp.c1;
+                if (mergedIds.contains(other.id)) { //the pair was already invalid, or it is the merged pair
+                    continue;
+                }
+                nValidPairs--;
+                if (pairedIds.add(other.id)) { //a cluster paired with both id1 and id2 gets only one pair with c
+                    ClusterPair ncp = new ClusterPair(c, other, ignoreRadiusCriterion); //replace the pair with the merge of c and the other cluster of the pair
+                    if (ncp.SSQinc != Double.POSITIVE_INFINITY) {
+                        newPairs.add(ncp);
                     }
                 }
-            } else {
-                heap[insertIndex] = heap[readIndex];
-                insertIndex++;
             }
-            readIndex++;
-        }
-        for (int i = size; i < heap.length; i++) {
-            heap[i] = null;
-        }
-
-        for (int i = 1; i < size; i++) { //heapify
-            moveUp(i);
         }
-
         for (ClusterPair cp : newPairs) {
-            heap[size] = cp;
-            moveUp(size);
-            size++;
+            add(cp);
+            addToPairsOf(cp);
+        }
+        nValidPairs += newPairs.size();
+        if (size > 2 * nValidPairs + 16) { //most of the heap is made of invalid pairs
+            compact();
         }
         return c;
     }
@@ -126,6 +171,9 @@ public class ClusterBlocksHeap {
         HashSet<Integer> processed = new HashSet<>();
         ArrayList<MasterClusterBlock> res = new ArrayList<>();
         for (int i = 0; i < size; i++) {
+            if (!isValid(heap[i])) {
+                continue;
+            }
             if (!processed.contains(heap[i].c1.id)) {
                 res.add(heap[i].c1);
                 processed.add(heap[i].c1.id);
@@ -138,6 +186,67 @@ public class ClusterBlocksHeap {
         return res;
     }
 
+    private boolean isValid(ClusterPair cp) {
+        return !mergedIds.contains(cp.c1.id) && !mergedIds.contains(cp.c2.id);
+    }
+
+    private void addToPairsOf(ClusterPair cp) {
+        for (MasterClusterBlock c : new MasterClusterBlock[]{cp.c1, cp.c2}) {
+            ArrayList<ClusterPair> pairs = pairsOf.get(c.id);
+            if (pairs == null) {
+                pairs = new ArrayList<>();
+                pairsOf.put(c.id, pairs);
+            }
+            pairs.add(cp);
+        }
+    }
+
+    private void add(ClusterPair cp) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, 2 * size);
+        }
+        heap[size] = cp;
+        moveUp(size);
+        size++;
+    }
+
+    private void removeTop() {
+        size--;
+        heap[0] = heap[size];
+        heap[size] = null;
+        if (size > 0) {
+            moveDown(0);
+        }
+    }
+
+    //removes the invalid pairs from the heap and from the lists of pairs
+    private void compact() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (isValid(heap[i])) {
+                heap[n++] = heap[i];
+            }
+        }
+        for (int i = n; i < size; i++) {
+            heap[i] = null;
+        }
+        size = n;
+        heapify();
+        for (ArrayList<ClusterPair> pairs : pairsOf.values()) {
+            for (Iterator<ClusterPair> it = pairs.iterator(); it.hasNext();) {
+                if (!isValid(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void heapify() {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            moveDown(i);
+        }
+    }
+
     private int moveUp(int p) {
         while (p > 0 && heap[p].compareTo(heap[(p + 1) / 2 - 1]) < 0) {
             ClusterPair tmp = heap[(p + 1) / 2 - 1];
@@ -148,6 +257,18 @@ public class ClusterBlocksHeap {
         return p;
     }
 
+    private int moveDown(int p) {
+        int c = minChild(p);
+        while (c != p) {
+            ClusterPair tmp = heap[c];
+            heap[c] = heap[p];
+            heap[p] = tmp;
+            p = c;
+            c = minChild(p);
+        }
+        return p;
+    }
+
     private int minChild(int p) {
         int p1 = (p + 1) * 2 - 1;
         int p2 = (p + 1) * 2;
@@ -5,17 +5,26 @@
  */
 package edu.ucla.cs.scai.clubsp.master;
 
+import edu.ucla.cs.scai.clubsp.commons.FairScheduler;
 import edu.ucla.cs.scai.clubsp.commons.RegisteredWorker;
+import edu.ucla.cs.scai.clubsp.commons.SerialExecutor;
+import edu.ucla.cs.scai.clubsp.messages.CancelExecutionRequest;
 import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
 import edu.ucla.cs.scai.clubsp.messages.DummyMessage;
 import edu.ucla.cs.scai.clubsp.messages.GenerateDataSetRequest;
+import edu.ucla.cs.scai.clubsp.messages.MessageInputStream;
+import edu.ucla.cs.scai.clubsp.messages.MessageOutputStream;
+import edu.ucla.cs.scai.clubsp.messages.ResumeExecutionRequest;
 import edu.ucla.cs.scai.clubsp.messages.StartClusteringRequest;
 import edu.ucla.cs.scai.clubsp.messages.StartGenerationRequest;
 import edu.ucla.cs.scai.clubsp.messages.WorkerConnectionRequest;
 import edu.ucla.cs.scai.clubsp.messages.WorkerConnectionResponse;
+import edu.ucla.cs.scai.clubsp.transport.MessageListener;
+import edu.ucla.cs.scai.clubsp.transport.NioConnection;
+import edu.ucla.cs.scai.clubsp.transport.NioTransport;
+import edu.ucla.cs.scai.clubsp.transport.PeerChannel;
+import edu.ucla.cs.scai.clubsp.transport.StreamPeerChannel;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
@@ -25,6 +34,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,9 +46,14 @@ import java.util.logging.Logger;
 public class Master {
 
     int port;
-    final HashMap<String, ObjectOutputStream> workerOutputStreams = new HashMap<>(); //used to send messages to workers
-    final HashMap<String, MasterExecution> masterExecutions = new HashMap<>();
+    final ConcurrentHashMap<String, PeerChannel> workerChannels = new ConcurrentHashMap<>(); //used to send messages to workers
+    final ConcurrentHashMap<String, MasterExecution> masterExecutions = new ConcurrentHashMap<>(); //read by the message handlers
     final HashMap<String, RegisteredWorker> registeredWorkers = new HashMap<>();
+    NioTransport transport; //used instead of the sockets when clubsp.transport=nio
+    //the messages of every execution are processed in order in its own lane, and the lanes share the threads in turn
+    static final int THREADS = Math.max(1, Integer.getInteger("clubsp.master.threads", Runtime.getRuntime().availableProcessors()));
+    final FairScheduler scheduler = new FairScheduler(THREADS, "MasterTask");
+    final ConcurrentHashMap<String, SerialExecutor> executionLanes = new ConcurrentHashMap<>();
 
     public Master(int port) throws Exception {
         this.port = port;
@@ -45,6 +61,10 @@ public class Master {
 
     //start listening on the port specified with the constructor
     public void start() throws Exception {
+        if (NioTransport.ENABLED) {
+            startNio();
+            return;
+        }
         //start the deadlock detection
         /*
         new Thread() {
@@ -81,12 +101,12 @@ public class Master {
                 Socket socketIn = listener.accept();
                 socketIn.setTcpNoDelay(true);
                 try {
-                    ObjectInputStream in = new ObjectInputStream(socketIn.getInputStream());
-                    ClubsPMessage msg = (ClubsPMessage) in.readObject();
+                    MessageInputStream in = new MessageInputStream(socketIn.getInputStream());
+                    ClubsPMessage msg = in.readMessage();
                     System.out.println("Received command " + msg);
                     if (msg instanceof WorkerConnectionRequest) {
                         //when a worker connects to the master, it is associated with an id
-                        String id = "w" + (workerOutputStreams.size() + 1);
+                        String id = "w" + (workerChannels.size() + 1);
                         System.out.println("Worker " + id + " registered");
                         socketIn.setTcpNoDelay(true);
                         socketIn.setKeepAlive(true);
@@ -102,7 +122,7 @@ public class Master {
                         socketOut.setTcpNoDelay(true);
                         socketOut.setKeepAlive(true);
                         socketOut.setSoTimeout(0);
-                        workerOutputStreams.put(id, new ObjectOutputStream(socketOut.getOutputStream()));
+                        workerChannels.put(id, new StreamPeerChannel(id, new MessageOutputStream(socketOut.getOutputStream())));
                         System.out.println("Saved socket to send messages to worker " + id);
                         sendMessage(id, new WorkerConnectionResponse(id));
                         registeredWorkers.put(id, new RegisteredWorker(id, ip[ip.length - 1], c.port));
@@ -112,6 +132,14 @@ public class Master {
                         initExecution(c.dataSetId, 1);
                         //close socket
                         socketIn.close();
+                    } else if (msg instanceof CancelExecutionRequest) {
+                        cancelExecution(((CancelExecutionRequest) msg).executionId);
+                        //close socket
+                        socketIn.close();
+                    } else if (msg instanceof ResumeExecutionRequest) {
+                        resumeExecution(((ResumeExecutionRequest) msg).executionId);
+                        //close socket
+                        socketIn.close();
                     } else if (msg instanceof StartGenerationRequest) {
                         StartGenerationRequest c = (StartGenerationRequest) msg;
                         initGeneration(c.nOfTuples, c.dimensionality, c.domainWidth, c.nOfClusters, c.noiseRatio);
@@ -122,7 +150,7 @@ public class Master {
                         //close socket
                         socketIn.close();
                     }
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     System.out.println(e);
                     try {
                         //close socket
@@ -138,15 +166,66 @@ public class Master {
         }
     }
 
+    //with the NIO transport, the connections are handled by the selector thread of the transport
+    void startNio() throws Exception {
+        transport = new NioTransport(new MessageListener() {
+            @Override
+            public void messageReceived(NioConnection connection, ClubsPMessage msg) {
+                acceptNio(connection, msg);
+            }
+        });
+        transport.listen(port);
+        transport.start();
+        System.out.println("Master started at port " + port + " with the NIO transport");
+        transport.join();
+        System.out.println("Master terminated");
+    }
+
+    //handles the first message received on a connection accepted by the NIO transport
+    void acceptNio(NioConnection connection, ClubsPMessage msg) {
+        System.out.println("Received command " + msg);
+        try {
+            if (msg instanceof WorkerConnectionRequest) {
+                WorkerConnectionRequest c = (WorkerConnectionRequest) msg;
+                String ip = connection.getRemoteHost();
+                String id;
+                synchronized (this) {
+                    id = "w" + (registeredWorkers.size() + 1);
+                    System.out.println("Worker " + id + " registered");
+                    //the following messages received on this connection come from the worker
+                    connection.setName(id);
+                    connection.setListener(new MasterIncomingMessageHandler(null, this, id));
+                    workerChannels.put(id, transport.connect(ip, c.port, id));
+                    System.out.println("Saved connection to send messages to worker " + id);
+                    sendMessage(id, new WorkerConnectionResponse(id));
+                    registeredWorkers.put(id, new RegisteredWorker(id, ip, c.port));
+                }
+            } else if (msg instanceof StartClusteringRequest) {
+                StartClusteringRequest c = (StartClusteringRequest) msg;
+                initExecution(c.dataSetId, 1);
+            } else if (msg instanceof CancelExecutionRequest) {
+                cancelExecution(((CancelExecutionRequest) msg).executionId);
+            } else if (msg instanceof ResumeExecutionRequest) {
+                resumeExecution(((ResumeExecutionRequest) msg).executionId);
+            } else if (msg instanceof StartGenerationRequest) {
+                StartGenerationRequest c = (StartGenerationRequest) msg;
+                initGeneration(c.nOfTuples, c.dimensionality, c.domainWidth, c.nOfClusters, c.noiseRatio);
+            } else {
+                System.out.println("Unrecognized message type");
+            }
+            //the connections of the starters are closed by the selector when the starters close them
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
     //send a message to a registered worker
-    public synchronized void sendMessage(String workerId, ClubsPMessage message) {
+    //sends to different workers do not wait for each other
+    public void sendMessage(String workerId, ClubsPMessage message) {
         try {
             System.out.println("Sending " + message + " to " + workerId);
-            ObjectOutputStream oos = workerOutputStreams.get(workerId);
-            oos.writeObject(message);
-            oos.flush();
-            //oos.writeObject(new DummyMessage(message.getId()));
-            //oos.flush();
+            workerChannels.get(workerId).send(message);
+            //workerChannels.get(workerId).send(new DummyMessage(message.getId()));
             System.out.println("Sent " + message + " to " + workerId);
         } catch (Exception e) {
             System.out.println("Error sending " + message + " to worker " + workerId + "\n" + e.getMessage());
@@ -154,14 +233,66 @@ public class Master {
         }
     }
 
+    public void printSendStatistics() {
+        for (PeerChannel c : workerChannels.values()) {
+            System.out.println("Messages sent to " + c.getName() + ": " + c.getSentMessages() + " (" + c.getSentBytes() + " bytes), peak send queue depth: " + c.getPeakQueueDepth() + ", current: " + c.getQueueDepth());
+        }
+    }
+
     //start a new clustering execution
     public synchronized void initExecution(String dataSetId, double scaleFactor) {
         if (registeredWorkers.isEmpty()) {
             System.out.println("No workers available, sorry!");
         } else {
             MasterExecution newExec = new MasterExecution(this, dataSetId, scaleFactor);
+            executionLanes.put(newExec.executionId, new SerialExecutor(scheduler.newQueue()));
             masterExecutions.put(newExec.executionId, newExec);
+            newExec.start();
+        }
+    }
+
+    //restart an execution from its last checkpoint, after a restart of the master or of the workers
+    public synchronized void resumeExecution(String executionId) {
+        if (masterExecutions.containsKey(executionId)) {
+            System.out.println("Execution " + executionId + " is running");
+            return;
+        }
+        MasterExecution newExec;
+        try {
+            newExec = MasterExecution.resume(this, executionId);
+        } catch (IOException e) {
+            System.out.println("Execution " + executionId + " cannot be resumed: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        executionLanes.put(executionId, new SerialExecutor(scheduler.newQueue()));
+        masterExecutions.put(executionId, newExec);
+        newExec.start();
+    }
+
+    //the lane processing the messages of an execution, null if the execution is finished or cancelled
+    Executor getExecutionLane(String executionId) {
+        return executionLanes.get(executionId);
+    }
+
+    //the messages of the execution still to be processed are discarded
+    void finishExecution(String executionId) {
+        masterExecutions.remove(executionId);
+        executionLanes.remove(executionId);
+    }
+
+    //stops an execution on the master and on all the workers
+    public void cancelExecution(String executionId) {
+        MasterExecution ex = masterExecutions.get(executionId);
+        if (ex == null) {
+            System.out.println("Execution " + executionId + " not found");
+            return;
+        }
+        finishExecution(executionId);
+        for (String workerId : ex.workerIds) {
+            sendMessage(workerId, new CancelExecutionRequest(executionId));
         }
+        System.out.println("Execution " + executionId + " cancelled");
     }
 
     //args[0] is the port used by the master
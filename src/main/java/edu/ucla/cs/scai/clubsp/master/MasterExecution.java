@@ -16,19 +16,31 @@
 package edu.ucla.cs.scai.clubsp.master;
 
 import edu.ucla.cs.scai.clubsp.commons.BestSplitResult;
+import edu.ucla.cs.scai.clubsp.commons.CheckpointWriter;
 import edu.ucla.cs.scai.clubsp.commons.Range;
 import edu.ucla.cs.scai.clubsp.commons.RegisteredWorker;
 import edu.ucla.cs.scai.clubsp.commons.SplitResult;
+import edu.ucla.cs.scai.clubsp.messages.CheckpointRequest;
 import edu.ucla.cs.scai.clubsp.messages.ComputeBestSplitRequest;
 import edu.ucla.cs.scai.clubsp.messages.ComputeValleyCriterionRequest;
 import edu.ucla.cs.scai.clubsp.messages.FinalRefinementRequest;
 import edu.ucla.cs.scai.clubsp.messages.InitRootRequest;
 import edu.ucla.cs.scai.clubsp.messages.IntermediateRefinementRequest;
 import edu.ucla.cs.scai.clubsp.messages.LoadDataSetRequest;
+import edu.ucla.cs.scai.clubsp.messages.ReleaseMarginalsRequest;
+import edu.ucla.cs.scai.clubsp.messages.RestoreCheckpointRequest;
 import edu.ucla.cs.scai.clubsp.messages.RestrictedCountRequest;
 import edu.ucla.cs.scai.clubsp.messages.SendMarginalsRequest;
 import edu.ucla.cs.scai.clubsp.messages.SplitRequest;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,7 +63,15 @@ public class MasterExecution {
     Range globalDomain;
     int receivedLocalDomains;
     int receivedRootInfo;
-    PriorityQueue<MasterClusterBlock> splittingQueue = new PriorityQueue<>();
+    //number of blocks whose best split can be computed at the same time, set with the system property clubsp.master.blocksInFlight
+    //the decisions are still taken one block at a time, in the order of the serial algorithm
+    static final int BLOCKS_IN_FLIGHT = Math.max(1, Integer.getInteger("clubsp.master.blocksInFlight", 1));
+    //with the system property clubsp.boundedMarginals, the workers are told to release the marginals of the blocks that will not be split
+    static final boolean BOUNDED_MARGINALS = Boolean.getBoolean("clubsp.boundedMarginals");
+    PriorityQueue<MasterClusterBlock> splittingQueue = new PriorityQueue<>(); //blocks whose best split computation has not started yet
+    PriorityQueue<MasterClusterBlock> blocksInFlight = new PriorityQueue<>(); //blocks whose best split computation has started
+    HashSet<Integer> bestSplitComputed = new HashSet<>();
+    MasterClusterBlock committingBlock; //the block whose split decision is being carried out
     MasterClusterBlock root;
     HashMap<Integer, MasterClusterBlock> blocks = new HashMap<>();
     LinkedList<MasterClusterBlock> clusters = new LinkedList<>();
@@ -88,14 +108,236 @@ public class MasterExecution {
     long lastSendMarginalsDimension0Time;
     int clustersAfterDivisiveStep;
     long[] marginalTransferTime;
+    //with the system property clubsp.master.checkpointInterval (msec, 0 to disable), the state of the divisive phase is saved
+    //by the master and by the workers after a split, if the last checkpoint is older than the interval
+    //a checkpoint is taken when no split is in progress, and its files are written in background
+    static final long CHECKPOINT_INTERVAL = Long.getLong("clubsp.master.checkpointInterval", 0);
+    static final int CHECKPOINT_VERSION = 1;
+    int checkpointId; //the last checkpoint taken or restored
+    int committedCheckpointId; //the last checkpoint whose file has been written by the master
+    byte[] pendingCheckpoint; //the state of the master at the last checkpoint, written after the workers have written theirs
+    int receivedCheckpoints;
+    long lastCheckpointTime;
+    ArrayList<Integer> restoredPendingBlockIds; //not null if the execution is resumed from a checkpoint
+    int receivedRestoredCheckpoints;
+    boolean restoreFailed;
 
     public MasterExecution(final Master master, final String dataSetId, final double scaleFactor) {
+        this(master, null, dataSetId, scaleFactor);
+    }
+
+    //executionId is null for a new execution
+    private MasterExecution(Master master, String executionId, String dataSetId, double scaleFactor) {
         startTime = System.currentTimeMillis();
         this.master = master;
         this.dataSetId = dataSetId;
         this.scaleFactor = scaleFactor;
-        this.executionId = dataSetId + "_" + startTime;
+        this.executionId = executionId != null ? executionId : dataSetId + "_" + startTime;
         this.workerIds.addAll(master.registeredWorkers.keySet());
+    }
+
+    static File getCheckpointFile(String executionId) {
+        return CheckpointWriter.getFile(".", executionId + ".checkpoint");
+    }
+
+    //an execution restarted from its last checkpoint: the data set is loaded again by the workers,
+    //which then restore their partitions, and the divisive phase continues from the blocks still to be split
+    static MasterExecution resume(Master master, String executionId) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getCheckpointFile(executionId))))) {
+            if (in.readInt() != CHECKPOINT_VERSION || !in.readUTF().equals(executionId)) {
+                throw new IOException("Invalid checkpoint of execution " + executionId);
+            }
+            MasterExecution ex = new MasterExecution(master, executionId, in.readUTF(), in.readDouble());
+            ex.readCheckpoint(in);
+            for (String workerId : ex.workerIds) {
+                if (!master.registeredWorkers.containsKey(workerId)) {
+                    throw new IOException("Worker " + workerId + " of execution " + executionId + " is not registered");
+                }
+            }
+            return ex;
+        }
+    }
+
+    void writeCheckpoint(DataOutputStream out) throws IOException {
+        out.writeInt(CHECKPOINT_VERSION);
+        out.writeUTF(executionId);
+        out.writeUTF(dataSetId);
+        out.writeDouble(scaleFactor);
+        out.writeInt(checkpointId);
+        out.writeInt(workerIds.size());
+        for (String workerId : workerIds) {
+            out.writeUTF(workerId);
+        }
+        out.writeInt(dimensionality);
+        for (int i = 0; i < dimensionality; i++) {
+            out.writeInt(globalDomain.inf[i]);
+            out.writeInt(globalDomain.sup[i]);
+        }
+        out.writeInt(sequence.getLastValue());
+        out.writeInt(nLeaves);
+        out.writeDouble(SSQ0);
+        out.writeDouble(SSQ);
+        out.writeDouble(BCSSQ);
+        out.writeDouble(chIndex);
+        out.writeDouble(maxCHindex);
+        writeBlock(out, root);
+        out.writeInt(clusters.size());
+        for (MasterClusterBlock c : clusters) {
+            out.writeInt(c.id);
+        }
+        //the blocks in flight will compute their best split again
+        out.writeInt(splittingQueue.size() + blocksInFlight.size());
+        for (MasterClusterBlock b : splittingQueue) {
+            out.writeInt(b.id);
+        }
+        for (MasterClusterBlock b : blocksInFlight) {
+            out.writeInt(b.id);
+        }
+    }
+
+    //the tree is written in preorder, the ranges of the children are derived from the split of the parent
+    void writeBlock(DataOutputStream out, MasterClusterBlock block) throws IOException {
+        out.writeInt(block.globalN);
+        for (int i = 0; i < dimensionality; i++) {
+            out.writeDouble(block.globalLS[i]);
+            out.writeDouble(block.globalSS[i]);
+        }
+        out.writeDouble(block.actualDeltaSSQ);
+        out.writeInt(block.sd);
+        if (block.sd >= 0) {
+            out.writeInt(block.sp);
+            out.writeInt(block.lc.id);
+            out.writeInt(block.rc.id);
+            writeBlock(out, block.lc);
+            writeBlock(out, block.rc);
+        }
+    }
+
+    void readCheckpoint(DataInputStream in) throws IOException {
+        checkpointId = in.readInt();
+        committedCheckpointId = checkpointId;
+        workerIds.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            workerIds.add(in.readUTF());
+        }
+        dimensionality = in.readInt();
+        marginalTransferTime = new long[dimensionality];
+        globalDomain = new Range(new int[dimensionality], new int[dimensionality]);
+        for (int i = 0; i < dimensionality; i++) {
+            globalDomain.inf[i] = in.readInt();
+            globalDomain.sup[i] = in.readInt();
+        }
+        sequence.setLastValue(in.readInt());
+        nLeaves = in.readInt();
+        SSQ0 = in.readDouble();
+        SSQ = in.readDouble();
+        BCSSQ = in.readDouble();
+        chIndex = in.readDouble();
+        maxCHindex = in.readDouble();
+        root = MasterClusterBlock.initRoot(globalDomain.getCopy(), 0);
+        readBlock(in, root);
+        for (int i = in.readInt(); i > 0; i--) {
+            clusters.add(blocks.get(in.readInt()));
+        }
+        restoredPendingBlockIds = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            int id = in.readInt();
+            restoredPendingBlockIds.add(id);
+            splittingQueue.offer(blocks.get(id));
+        }
+    }
+
+    void readBlock(DataInputStream in, MasterClusterBlock block) throws IOException {
+        blocks.put(block.id, block);
+        block.globalN = in.readInt();
+        for (int i = 0; i < dimensionality; i++) {
+            block.globalLS[i] = in.readDouble();
+            block.globalSS[i] = in.readDouble();
+        }
+        block.computeGlobalSSQ();
+        block.actualDeltaSSQ = in.readDouble();
+        int sd = in.readInt();
+        if (sd >= 0) {
+            int sp = in.readInt();
+            int leftId = in.readInt();
+            int rightId = in.readInt();
+            MasterClusterBlock[] children = block.split(sd, sp, leftId, rightId);
+            readBlock(in, children[0]);
+            readBlock(in, children[1]);
+        }
+    }
+
+    //the state is copied now, and the workers are asked to save their partitions
+    //no split is in progress, and the split requests sent later are handled by the workers after the checkpoint
+    void takeCheckpoint() {
+        checkpointId++;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeCheckpoint(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        pendingCheckpoint = bytes.toByteArray();
+        receivedCheckpoints = 0;
+        lastCheckpointTime = System.currentTimeMillis();
+        System.out.println("Checkpoint " + checkpointId + " of execution " + executionId + " with " + nLeaves + " leaves");
+        for (String workerId : workerIds) {
+            master.sendMessage(workerId, new CheckpointRequest(executionId, checkpointId, committedCheckpointId));
+        }
+    }
+
+    //the checkpoint of the master is written only when all the workers have written theirs
+    //if a worker fails, the checkpoint is discarded, and the next one is taken after the interval
+    public synchronized void increaseReceivedCheckpoints(final int checkpointId, boolean written) {
+        if (checkpointId != this.checkpointId || pendingCheckpoint == null) {
+            return;
+        }
+        if (!written) {
+            System.out.println("Checkpoint " + checkpointId + " of execution " + executionId + " discarded, a worker could not write it");
+            pendingCheckpoint = null;
+            return;
+        }
+        receivedCheckpoints++;
+        if (receivedCheckpoints == workerIds.size()) {
+            final byte[] content = pendingCheckpoint;
+            CheckpointWriter.write(getCheckpointFile(executionId), new CheckpointWriter.Content() {
+                @Override
+                public void writeTo(DataOutputStream out) throws IOException {
+                    out.write(content);
+                }
+            }, new CheckpointWriter.Listener() {
+                @Override
+                public void checkpointWritten(boolean written) {
+                    synchronized (MasterExecution.this) {
+                        if (written) {
+                            committedCheckpointId = checkpointId;
+                        }
+                        pendingCheckpoint = null;
+                    }
+                }
+            });
+        }
+    }
+
+    public synchronized void increaseReceivedRestoredCheckpoints(boolean restored) {
+        receivedRestoredCheckpoints++;
+        restoreFailed |= !restored;
+        if (receivedRestoredCheckpoints == workerIds.size()) {
+            if (restoreFailed) {
+                System.out.println("The checkpoint " + checkpointId + " of execution " + executionId + " could not be restored by all the workers");
+                master.cancelExecution(executionId);
+                return;
+            }
+            System.out.println("Execution " + executionId + " resumed from checkpoint " + checkpointId + " with " + nLeaves + " leaves");
+            startSplittingTime = System.currentTimeMillis();
+            lastCheckpointTime = startSplittingTime;
+            scheduleSplits();
+        }
+    }
+
+    //the execution must be registered by the master before it is started, as the workers can answer immediately
+    public void start() {
         final HashMap<String, RegisteredWorker> currentWorkers = new HashMap<>(master.registeredWorkers);
         //new Thread() {
         //@Override
@@ -120,7 +362,19 @@ public class MasterExecution {
             }
         }
         receivedLocalDomains++;
-        if (receivedLocalDomains == workerIds.size()) {
+        if (receivedLocalDomains == workerIds.size() && restoredPendingBlockIds != null) {
+            startInitRootTime = System.currentTimeMillis();
+            //the partitions of the workers refer to the domain of the checkpoint
+            if (!Arrays.equals(globalDomain.inf, root.r.inf) || !Arrays.equals(globalDomain.sup, root.r.sup)) {
+                System.out.println("The data set " + dataSetId + " changed after the checkpoint of execution " + executionId);
+                master.cancelExecution(executionId);
+                return;
+            }
+            RestoreCheckpointRequest c = new RestoreCheckpointRequest(executionId, checkpointId, root.r, restoredPendingBlockIds);
+            for (String workerId : workerIds) {
+                master.sendMessage(workerId, c);
+            }
+        } else if (receivedLocalDomains == workerIds.size()) {
             startInitRootTime = System.currentTimeMillis();
             root = MasterClusterBlock.initRoot(globalDomain, 0);
             blocks.put(0, root);
@@ -136,16 +390,44 @@ public class MasterExecution {
         root.addGlobalNLSSS(n, LS, SS, receivedRootInfo == 1);
         if (receivedRootInfo == workerIds.size()) {
             startSplittingTime = System.currentTimeMillis();
+            lastCheckpointTime = startSplittingTime;
             root.computeGlobalSSQ();
             SSQ0 = root.getGlobalSSQ();
             SSQ = SSQ0;
             splittingQueue.offer(root);
+            scheduleSplits();
+        }
+    }
+
+    //the next block to be committed is the one with the largest SSQ among the enqueued and the in-flight blocks,
+    //as the serial algorithm would extract it from the queue; the other enqueued blocks are started while
+    //there are less than BLOCKS_IN_FLIGHT blocks in flight, the committing block included
+    void scheduleSplits() {
+        while (committingBlock == null) {
+            MasterClusterBlock head = blocksInFlight.peek();
+            MasterClusterBlock next = splittingQueue.peek();
+            if (next != null && (head == null || next.compareTo(head) < 0)) {
+                startSplitNextEnqueuedBlock();
+                break;
+            }
+            if (head == null) { //the divisive phase has ended, the intermediate refinement must be started
+                startIntermediateRefinement();
+                return;
+            }
+            if (!bestSplitComputed.contains(head.id)) {
+                break;
+            }
+            blocksInFlight.poll();
+            commitBestSplit(head.id);
+        }
+        while (!splittingQueue.isEmpty() && blocksInFlight.size() + (committingBlock == null ? 0 : 1) < BLOCKS_IN_FLIGHT) {
             startSplitNextEnqueuedBlock();
         }
     }
 
     void startSplitNextEnqueuedBlock() {
         final MasterClusterBlock block = splittingQueue.poll();
+        blocksInFlight.offer(block);
         final MarginalComputationExecutionPlan ep = new MarginalComputationExecutionPlan(dimensionality, workerIds);
         marginalComputationExecutionPlans.put(block.id, ep);
         //new Thread() {
@@ -215,38 +497,43 @@ public class MasterExecution {
         bestSplits.put(dimension, split);
         if (bestSplits.size() == dimensionality) {
             System.out.println("Best splits computed along all the dimensions");
-            double maxSSQ = 0;
-            for (Map.Entry<Integer, BestSplitResult> e : bestSplits.entrySet()) {
-                if (e.getValue().getDeltaSSQ() > maxSSQ) {
-                    maxSSQ = e.getValue().getDeltaSSQ();
-                    dimensionOfBestSplitReceived.put(blockId, e.getKey());
-                }
-            }
-            //now we need to check if the best split is effective
-            double newBCSSQ = BCSSQ + maxSSQ;
-            double newSSQ = SSQ - maxSSQ;
-            double newCHindex = (newBCSSQ * (root.globalN - (nLeaves + 1))) / (newSSQ * nLeaves); //k=k-1+1
-
-            if (nLeaves > 1 && newCHindex >= maxCHindex) { //do split                
-                doSplit(blockId);
-            } else if (newCHindex >= 0.7 * maxCHindex) { //compute valley criterion                
-                for (int i = 0; i < marginalComputationExecutionPlans.get(blockId).workerAllocations.length; i++) {
-                    String workerId = marginalComputationExecutionPlans.get(blockId).workerAllocations[i].get(0);
-                    master.sendMessage(workerId, new ComputeValleyCriterionRequest(executionId, blockId, i, 0.1));
-                }
-            } else { //the split is not effective - a new block is extracted from the queue
-                clusters.add(blocks.get(blockId));
-                if (splittingQueue.isEmpty()) { //the divisive phase has ended, the intermediate refinement must be started
-                    startIntermediateRefinement();
-                } else { //extract next block from queue and start computing its best split
-                    startSplitNextEnqueuedBlock();
-                }
-            }            
+            bestSplitComputed.add(blockId);
+            scheduleSplits();
         } else {
             System.out.println("Waiting for the best split of other "+(dimensionality-bestSplits.size())+" dimensions");
         }
     }
 
+    //decides whether the block is split, it must be called when no other block is committing
+    private void commitBestSplit(int blockId) {
+        committingBlock = blocks.get(blockId);
+        HashMap<Integer, BestSplitResult> bestSplits = bestSplitReceived.get(blockId);
+        double maxSSQ = 0;
+        for (Map.Entry<Integer, BestSplitResult> e : bestSplits.entrySet()) {
+            if (e.getValue().getDeltaSSQ() > maxSSQ) {
+                maxSSQ = e.getValue().getDeltaSSQ();
+                dimensionOfBestSplitReceived.put(blockId, e.getKey());
+            }
+        }
+        //now we need to check if the best split is effective
+        double newBCSSQ = BCSSQ + maxSSQ;
+        double newSSQ = SSQ - maxSSQ;
+        double newCHindex = (newBCSSQ * (root.globalN - (nLeaves + 1))) / (newSSQ * nLeaves); //k=k-1+1
+
+        if (nLeaves > 1 && newCHindex >= maxCHindex) { //do split                
+            doSplit(blockId);
+        } else if (newCHindex >= 0.7 * maxCHindex) { //compute valley criterion                
+            for (int i = 0; i < marginalComputationExecutionPlans.get(blockId).workerAllocations.length; i++) {
+                String workerId = marginalComputationExecutionPlans.get(blockId).workerAllocations[i].get(0);
+                master.sendMessage(workerId, new ComputeValleyCriterionRequest(executionId, blockId, i, 0.1));
+            }
+        } else { //the split is not effective - the caller extracts the next block
+            clusters.add(committingBlock);
+            releaseMarginals(committingBlock);
+            committingBlock = null;
+        }
+    }
+
     private void doSplit(int blockId) {
         //send the split request to the workerIds
 
@@ -264,6 +551,17 @@ public class MasterExecution {
         }
     }
 
+    //the marginals of a block which is not split are not needed anymore by the workers
+    private void releaseMarginals(MasterClusterBlock block) {
+        if (BOUNDED_MARGINALS) {
+            ArrayList<Integer> blockIds = new ArrayList<>();
+            blockIds.add(block.id);
+            for (String workerId : workerIds) {
+                master.sendMessage(workerId, new ReleaseMarginalsRequest(executionId, blockIds));
+            }
+        }
+    }
+
     public synchronized void increaseReceivedValleyCriterion(int blockId, int dimension, boolean satisfied) {
         Integer alreadyReceived = valleyCriterionReceived.get(blockId);
         if (alreadyReceived == null) {
@@ -281,11 +579,9 @@ public class MasterExecution {
             doSplit(blockId);
         } else if (alreadyReceived == dimensionality) {
             clusters.add(blocks.get(blockId));
-            if (splittingQueue.isEmpty()) {
-                startIntermediateRefinement();
-            } else {
-                startSplitNextEnqueuedBlock();
-            }
+            releaseMarginals(blocks.get(blockId));
+            committingBlock = null;
+            scheduleSplits();
         }
     }
 
@@ -306,7 +602,11 @@ public class MasterExecution {
             updateCHindeAfterSplit(block);
             splittingQueue.offer(block.lc);
             splittingQueue.offer(block.rc);
-            startSplitNextEnqueuedBlock();
+            committingBlock = null;
+            if (CHECKPOINT_INTERVAL > 0 && pendingCheckpoint == null && System.currentTimeMillis() - lastCheckpointTime >= CHECKPOINT_INTERVAL) {
+                takeCheckpoint();
+            }
+            scheduleSplits();
         }
     }
 
@@ -569,6 +869,11 @@ public class MasterExecution {
                 tot += marginalTransferTime[d];
             }
             System.out.println("Total marginal transfer time: " + tot);
+            master.printSendStatistics();
+            master.executionLanes.remove(executionId); //no more messages are expected
+            if (checkpointId > 0) { //the execution will not be resumed
+                CheckpointWriter.delete(getCheckpointFile(executionId));
+            }
         }
     }
 
@@ -15,6 +15,7 @@
  */
 package edu.ucla.cs.scai.clubsp.master;
 
+import edu.ucla.cs.scai.clubsp.messages.CheckpointResponse;
 import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
 import edu.ucla.cs.scai.clubsp.messages.ComputeBestSplitResponse;
 import edu.ucla.cs.scai.clubsp.messages.ComputeValleyCriterionResponse;
@@ -24,23 +25,27 @@ import edu.ucla.cs.scai.clubsp.messages.FinalRefinementResponse;
 import edu.ucla.cs.scai.clubsp.messages.InitRootResponse;
 import edu.ucla.cs.scai.clubsp.messages.IntermediateRefinementResponse;
 import edu.ucla.cs.scai.clubsp.messages.LoadDataSetResponse;
+import edu.ucla.cs.scai.clubsp.messages.MessageInputStream;
 import edu.ucla.cs.scai.clubsp.messages.ReceiveMarginalsResponse;
+import edu.ucla.cs.scai.clubsp.messages.RestoreCheckpointResponse;
 import edu.ucla.cs.scai.clubsp.messages.RestrictedCountResponse;
 import edu.ucla.cs.scai.clubsp.messages.SplitResponse;
-import java.io.ObjectInputStream;
+import edu.ucla.cs.scai.clubsp.transport.MessageListener;
+import edu.ucla.cs.scai.clubsp.transport.NioConnection;
 import java.util.Date;
+import java.util.concurrent.Executor;
 
 /**
  *
  * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
  */
-class MasterIncomingMessageHandler extends Thread {
+class MasterIncomingMessageHandler extends Thread implements MessageListener {
 
-    ObjectInputStream in;
+    MessageInputStream in;
     Master master;
     String senderName;
 
-    public MasterIncomingMessageHandler(ObjectInputStream in, Master master, String senderName) {
+    public MasterIncomingMessageHandler(MessageInputStream in, Master master, String senderName) {
         this.in = in;
         this.master = master;
         this.senderName = senderName;
@@ -51,44 +56,7 @@ class MasterIncomingMessageHandler extends Thread {
         boolean canrun = true;
         while (canrun) {
             try {
-                ClubsPMessage msg = (ClubsPMessage) in.readObject();
-                System.out.println(System.currentTimeMillis() + ": Received command " + msg + " " + msg.getId());
-                if (msg instanceof ExecutionMessage) {
-                    MasterExecution ex = master.masterExecutions.get(((ExecutionMessage) msg).executionId);
-                    if (msg instanceof LoadDataSetResponse) {
-                        LoadDataSetResponse c = (LoadDataSetResponse) msg;
-                        ex.increaseReceivedLocalDoamins(c.localDomain);
-                    } else if (msg instanceof InitRootResponse) {
-                        InitRootResponse c = (InitRootResponse) msg;
-                        ex.increaseReceivedRootInfo(c.n, c.LS, c.SS);
-                    } else if (msg instanceof ReceiveMarginalsResponse) {
-                        ReceiveMarginalsResponse c = (ReceiveMarginalsResponse) msg;
-                        ex.increaseReceivedMarginals(c.blockId, c.dimension, c.time);
-                    } else if (msg instanceof ComputeBestSplitResponse) {
-                        ComputeBestSplitResponse c = (ComputeBestSplitResponse) msg;
-                        ex.increaseReceivedBestSplits(c.blockId, c.dimension, c.split);
-                    } else if (msg instanceof ComputeValleyCriterionResponse) {
-                        ComputeValleyCriterionResponse c = (ComputeValleyCriterionResponse) msg;
-                        ex.increaseReceivedValleyCriterion(c.blockId, c.dimension, c.satisfied);
-                    } else if (msg instanceof SplitResponse) {
-                        SplitResponse c = (SplitResponse) msg;
-                        ex.increaseReceivedSplit(c.blockId, c.split);
-                    } else if (msg instanceof RestrictedCountResponse) {
-                        RestrictedCountResponse c = (RestrictedCountResponse) msg;
-                        ex.increaseReceivedRestrictedCount(c.blockIds, c.restrictedCount);
-                    } else if (msg instanceof IntermediateRefinementResponse) {
-                        IntermediateRefinementResponse c = (IntermediateRefinementResponse) msg;
-                        ex.increaseReceivedIntermediateRefinement(c.blockIds, c.n, c.LS, c.SS);
-                    } else if (msg instanceof FinalRefinementResponse) {
-                        FinalRefinementResponse c = (FinalRefinementResponse) msg;
-                        ex.increaseReceivedFinalRefinement(c.n, c.LS, c.SS);
-                    } else {
-                        System.out.println("Unrecognized message type");
-                    }
-                } else if (msg instanceof DummyMessage) {
-                } else {
-                    System.out.println("Unrecognized message type");
-                }
+                handle(in.readMessage());
             } catch (Exception e) {
                 System.out.println("Error reading from the InputStream written by " + senderName + ": " + e);
                 e.printStackTrace();
@@ -96,4 +64,73 @@ class MasterIncomingMessageHandler extends Thread {
         }
         System.out.println("Error: a MasterMessageHandler stopped working!!!");
     }
+
+    public void handle(final ClubsPMessage msg) {
+        System.out.println(System.currentTimeMillis() + ": Received command " + msg + " " + msg.getId());
+        if (msg instanceof ExecutionMessage) {
+            //the messages of an execution are processed in its lane, so that the executions do not delay each other
+            Executor lane = master.getExecutionLane(((ExecutionMessage) msg).executionId);
+            if (lane == null) {
+                System.out.println("Message of an execution finished or cancelled ignored");
+                return;
+            }
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process((ExecutionMessage) msg);
+                }
+            });
+        } else if (msg instanceof DummyMessage) {
+        } else {
+            System.out.println("Unrecognized message type");
+        }
+    }
+
+    void process(ExecutionMessage msg) {
+        MasterExecution ex = master.masterExecutions.get(msg.executionId);
+        if (ex == null) {
+            return;
+        }
+        if (msg instanceof LoadDataSetResponse) {
+            LoadDataSetResponse c = (LoadDataSetResponse) msg;
+            ex.increaseReceivedLocalDoamins(c.localDomain);
+        } else if (msg instanceof InitRootResponse) {
+            InitRootResponse c = (InitRootResponse) msg;
+            ex.increaseReceivedRootInfo(c.n, c.LS, c.SS);
+        } else if (msg instanceof ReceiveMarginalsResponse) {
+            ReceiveMarginalsResponse c = (ReceiveMarginalsResponse) msg;
+            ex.increaseReceivedMarginals(c.blockId, c.dimension, c.time);
+        } else if (msg instanceof ComputeBestSplitResponse) {
+            ComputeBestSplitResponse c = (ComputeBestSplitResponse) msg;
+            ex.increaseReceivedBestSplits(c.blockId, c.dimension, c.split);
+        } else if (msg instanceof ComputeValleyCriterionResponse) {
+            ComputeValleyCriterionResponse c = (ComputeValleyCriterionResponse) msg;
+            ex.increaseReceivedValleyCriterion(c.blockId, c.dimension, c.satisfied);
+        } else if (msg instanceof SplitResponse) {
+            SplitResponse c = (SplitResponse) msg;
+            ex.increaseReceivedSplit(c.blockId, c.split);
+        } else if (msg instanceof RestrictedCountResponse) {
+            RestrictedCountResponse c = (RestrictedCountResponse) msg;
+            ex.increaseReceivedRestrictedCount(c.blockIds, c.restrictedCount);
+        } else if (msg instanceof IntermediateRefinementResponse) {
+            IntermediateRefinementResponse c = (IntermediateRefinementResponse) msg;
+            ex.increaseReceivedIntermediateRefinement(c.blockIds, c.n, c.LS, c.SS);
+        } else if (msg instanceof FinalRefinementResponse) {
+            FinalRefinementResponse c = (FinalRefinementResponse) msg;
+            ex.increaseReceivedFinalRefinement(c.n, c.LS, c.SS);
+        } else if (msg instanceof CheckpointResponse) {
+            CheckpointResponse c = (CheckpointResponse) msg;
+            ex.increaseReceivedCheckpoints(c.checkpointId, c.written);
+        } else if (msg instanceof RestoreCheckpointResponse) {
+            RestoreCheckpointResponse c = (RestoreCheckpointResponse) msg;
+            ex.increaseReceivedRestoredCheckpoints(c.restored);
+        } else {
+            System.out.println("Unrecognized message type");
+        }
+    }
+
+    @Override
+    public void messageReceived(NioConnection connection, ClubsPMessage msg) {
+        handle(msg);
+    }
 }
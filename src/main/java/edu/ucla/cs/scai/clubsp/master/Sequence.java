@@ -28,5 +28,14 @@ public class Sequence {
         lastVal++;
         return lastVal;
     }
+
+    //used to save and restore the sequence with the checkpoints
+    public int getLastValue() {
+        return lastVal;
+    }
+
+    public void setLastValue(int lastVal) {
+        this.lastVal = lastVal;
+    }
     
 }
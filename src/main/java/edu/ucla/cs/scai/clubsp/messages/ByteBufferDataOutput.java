@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DataOutput writing into a growable heap ByteBuffer, used to encode
+ * messages. Unlike DataOutputStream, primitive values are written directly
+ * into the buffer, and arrays of primitives are copied in bulk.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class ByteBufferDataOutput implements DataOutput {
+
+    ByteBuffer buffer;
+
+    public ByteBufferDataOutput(int initialCapacity) {
+        buffer = ByteBuffer.allocate(Math.max(16, initialCapacity));
+    }
+
+    void ensureRemaining(int n) {
+        if (buffer.remaining() < n) {
+            long newCapacity = Math.max(2L * buffer.capacity(), (long) buffer.position() + n);
+            if (newCapacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Message too large: " + newCapacity + " bytes");
+            }
+            ByteBuffer newBuffer = ByteBuffer.allocate((int) newCapacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+
+    public void clear() {
+        buffer.clear();
+    }
+
+    public int position() {
+        return buffer.position();
+    }
+
+    //the returned buffer is backed by an array and contains the bytes written so far between 0 and position()
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public void putInt(int index, int v) {
+        buffer.putInt(index, v);
+    }
+
+    public void writeInts(int[] v) {
+        ensureRemaining(4 * v.length);
+        buffer.asIntBuffer().put(v);
+        buffer.position(buffer.position() + 4 * v.length);
+    }
+
+    public void writeDoubles(double[] v) {
+        ensureRemaining(8 * v.length);
+        buffer.asDoubleBuffer().put(v);
+        buffer.position(buffer.position() + 8 * v.length);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        ensureRemaining(2);
+        buffer.putShort((short) v);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        ensureRemaining(2);
+        buffer.putChar((char) v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        ensureRemaining(4);
+        buffer.putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) {
+        ensureRemaining(8);
+        buffer.putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        ensureRemaining(4);
+        buffer.putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        ensureRemaining(8);
+        buffer.putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        ensureRemaining(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        ensureRemaining(2 * s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer.putChar(s.charAt(i));
+        }
+    }
+
+    //strings are short (ids and file names), the modified UTF-8 encoding of DataOutputStream is reused
+    @Override
+    public void writeUTF(String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length() + 2);
+        new DataOutputStream(bytes).writeUTF(s);
+        write(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,876 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.messages;
+
+import edu.ucla.cs.scai.clubsp.commons.BestSplitResult;
+import edu.ucla.cs.scai.clubsp.commons.MarginalDistribution;
+import edu.ucla.cs.scai.clubsp.commons.Range;
+import edu.ucla.cs.scai.clubsp.commons.RegisteredWorker;
+import edu.ucla.cs.scai.clubsp.commons.SplitResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of the messages exchanged by master and workers.
+ *
+ * A frame is made of the length of the rest of the frame (int), a type tag
+ * (byte), the id of the message (long) and the fields of the message. Arrays
+ * and lists are preceded by their length, which is -1 for null values.
+ * Messages of unknown classes, messages carrying an exception, and all the
+ * messages when the system property clubsp.javaSerialization is true, are
+ * encoded with Java serialization under the tag JAVA_SERIALIZED, so that they
+ * can still be read by any peer.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class MessageCodec {
+
+    public static final boolean JAVA_SERIALIZATION = Boolean.getBoolean("clubsp.javaSerialization");
+    //frames longer than this are rejected by the readers, as their length could be corrupted, set with clubsp.maxFrameLength
+    public static final int MAX_FRAME_LENGTH = Integer.getInteger("clubsp.maxFrameLength", 1 << 30);
+
+    static final byte JAVA_SERIALIZED = 0;
+    static final byte WORKER_CONNECTION_REQUEST = 1;
+    static final byte WORKER_CONNECTION_REQUEST_2 = 2;
+    static final byte WORKER_CONNECTION_RESPONSE = 3;
+    static final byte START_CLUSTERING_REQUEST = 4;
+    static final byte START_GENERATION_REQUEST = 5;
+    static final byte START_TEST_MARGINAL_AGGREGATION_REQUEST = 6;
+    static final byte GENERATE_DATA_SET_REQUEST = 7;
+    static final byte LOAD_DATA_SET_REQUEST = 8;
+    static final byte LOAD_DATA_SET_RESPONSE = 9;
+    static final byte INIT_ROOT_REQUEST = 10;
+    static final byte INIT_ROOT_RESPONSE = 11;
+    static final byte SEND_MARGINALS_REQUEST = 12;
+    static final byte RECEIVE_MARGINALS_REQUEST = 13;
+    static final byte RECEIVE_MARGINALS_RESPONSE = 14;
+    static final byte COMPUTE_BEST_SPLIT_REQUEST = 15;
+    static final byte COMPUTE_BEST_SPLIT_RESPONSE = 16;
+    static final byte SPLIT_REQUEST = 17;
+    static final byte SPLIT_RESPONSE = 18;
+    static final byte COMPUTE_VALLEY_CRITERION_REQUEST = 19;
+    static final byte COMPUTE_VALLEY_CRITERION_RESPONSE = 20;
+    static final byte RESTRICTED_COUNT_REQUEST = 21;
+    static final byte RESTRICTED_COUNT_RESPONSE = 22;
+    static final byte INTERMEDIATE_REFINEMENT_REQUEST = 23;
+    static final byte INTERMEDIATE_REFINEMENT_RESPONSE = 24;
+    static final byte FINAL_REFINEMENT_REQUEST = 25;
+    static final byte FINAL_REFINEMENT_RESPONSE = 26;
+    static final byte DUMMY_MESSAGE = 27;
+    static final byte RELEASE_MARGINALS_REQUEST = 28;
+    static final byte CANCEL_EXECUTION_REQUEST = 29;
+    static final byte RESUME_EXECUTION_REQUEST = 30;
+    static final byte CHECKPOINT_REQUEST = 31;
+    static final byte CHECKPOINT_RESPONSE = 32;
+    static final byte RESTORE_CHECKPOINT_REQUEST = 33;
+    static final byte RESTORE_CHECKPOINT_RESPONSE = 34;
+
+    static final HashMap<Class<?>, Byte> TAGS = new HashMap<>();
+
+    static {
+        TAGS.put(WorkerConnectionRequest.class, WORKER_CONNECTION_REQUEST);
+        TAGS.put(WorkerConnectionRequest2.class, WORKER_CONNECTION_REQUEST_2);
+        TAGS.put(WorkerConnectionResponse.class, WORKER_CONNECTION_RESPONSE);
+        TAGS.put(StartClusteringRequest.class, START_CLUSTERING_REQUEST);
+        TAGS.put(StartGenerationRequest.class, START_GENERATION_REQUEST);
+        TAGS.put(StartTestMarginalAggregationRequest.class, START_TEST_MARGINAL_AGGREGATION_REQUEST);
+        TAGS.put(GenerateDataSetRequest.class, GENERATE_DATA_SET_REQUEST);
+        TAGS.put(LoadDataSetRequest.class, LOAD_DATA_SET_REQUEST);
+        TAGS.put(LoadDataSetResponse.class, LOAD_DATA_SET_RESPONSE);
+        TAGS.put(InitRootRequest.class, INIT_ROOT_REQUEST);
+        TAGS.put(InitRootResponse.class, INIT_ROOT_RESPONSE);
+        TAGS.put(SendMarginalsRequest.class, SEND_MARGINALS_REQUEST);
+        TAGS.put(ReceiveMarginalsRequest.class, RECEIVE_MARGINALS_REQUEST);
+        TAGS.put(ReceiveMarginalsResponse.class, RECEIVE_MARGINALS_RESPONSE);
+        TAGS.put(ComputeBestSplitRequest.class, COMPUTE_BEST_SPLIT_REQUEST);
+        TAGS.put(ComputeBestSplitResponse.class, COMPUTE_BEST_SPLIT_RESPONSE);
+        TAGS.put(SplitRequest.class, SPLIT_REQUEST);
+        TAGS.put(SplitResponse.class, SPLIT_RESPONSE);
+        TAGS.put(ComputeValleyCriterionRequest.class, COMPUTE_VALLEY_CRITERION_REQUEST);
+        TAGS.put(ComputeValleyCriterionResponse.class, COMPUTE_VALLEY_CRITERION_RESPONSE);
+        TAGS.put(RestrictedCountRequest.class, RESTRICTED_COUNT_REQUEST);
+        TAGS.put(RestrictedCountResponse.class, RESTRICTED_COUNT_RESPONSE);
+        TAGS.put(IntermediateRefinementRequest.class, INTERMEDIATE_REFINEMENT_REQUEST);
+        TAGS.put(IntermediateRefinementResponse.class, INTERMEDIATE_REFINEMENT_RESPONSE);
+        TAGS.put(FinalRefinementRequest.class, FINAL_REFINEMENT_REQUEST);
+        TAGS.put(FinalRefinementResponse.class, FINAL_REFINEMENT_RESPONSE);
+        TAGS.put(DummyMessage.class, DUMMY_MESSAGE);
+        TAGS.put(ReleaseMarginalsRequest.class, RELEASE_MARGINALS_REQUEST);
+        TAGS.put(CancelExecutionRequest.class, CANCEL_EXECUTION_REQUEST);
+        TAGS.put(ResumeExecutionRequest.class, RESUME_EXECUTION_REQUEST);
+        TAGS.put(CheckpointRequest.class, CHECKPOINT_REQUEST);
+        TAGS.put(CheckpointResponse.class, CHECKPOINT_RESPONSE);
+        TAGS.put(RestoreCheckpointRequest.class, RESTORE_CHECKPOINT_REQUEST);
+        TAGS.put(RestoreCheckpointResponse.class, RESTORE_CHECKPOINT_RESPONSE);
+    }
+
+    //encodes the whole frame, length included, starting at the current position of out
+    public static void encode(ClubsPMessage msg, ByteBufferDataOutput out) throws IOException {
+        int start = out.position();
+        out.writeInt(0); //placeholder for the length
+        Byte tag = TAGS.get(msg.getClass());
+        if (JAVA_SERIALIZATION || tag == null || msg.e != null || !isEncodable(msg)) {
+            out.writeByte(JAVA_SERIALIZED);
+            ObjectOutputStream oos = new ObjectOutputStream(new ByteBufferOutputStream(out));
+            oos.writeObject(msg);
+            oos.close();
+        } else {
+            out.writeByte(tag);
+            out.writeLong(msg.id);
+            encodeFields(tag, msg, out);
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+
+    //decodes the frame contained in the buffer, length excluded
+    public static ClubsPMessage decode(ByteBuffer frame) throws IOException {
+        ByteBufferDataInput in = new ByteBufferDataInput(frame);
+        byte tag = in.readByte();
+        if (tag == JAVA_SERIALIZED) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining()))) {
+                return (ClubsPMessage) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+        long id = in.readLong();
+        ClubsPMessage msg = decodeFields(tag, in);
+        msg.id = id;
+        if (in.remaining() != 0) {
+            throw new IOException(in.remaining() + " bytes left after decoding " + msg.getClass().getSimpleName());
+        }
+        return msg;
+    }
+
+    //only the plain marginal distributions are binary encoded, the sums of squares are never sent
+    static boolean isEncodable(ClubsPMessage msg) {
+        if (msg instanceof ReceiveMarginalsRequest) {
+            MarginalDistribution m = ((ReceiveMarginalsRequest) msg).marginals;
+            return m == null || m.getClass() == MarginalDistribution.class;
+        }
+        return true;
+    }
+
+    static void encodeFields(byte tag, ClubsPMessage msg, ByteBufferDataOutput out) throws IOException {
+        switch (tag) {
+            case WORKER_CONNECTION_REQUEST: {
+                WorkerConnectionRequest m = (WorkerConnectionRequest) msg;
+                out.writeInt(m.port);
+                break;
+            }
+            case WORKER_CONNECTION_REQUEST_2: {
+                writeString(out, ((WorkerConnectionRequest2) msg).id);
+                break;
+            }
+            case WORKER_CONNECTION_RESPONSE: {
+                writeString(out, ((WorkerConnectionResponse) msg).assignedId);
+                break;
+            }
+            case START_CLUSTERING_REQUEST: {
+                writeString(out, ((StartClusteringRequest) msg).dataSetId);
+                break;
+            }
+            case START_GENERATION_REQUEST: {
+                StartGenerationRequest m = (StartGenerationRequest) msg;
+                out.writeInt(m.nOfTuples);
+                out.writeInt(m.dimensionality);
+                out.writeInt(m.nOfClusters);
+                out.writeDouble(m.noiseRatio);
+                out.writeInt(m.domainWidth);
+                break;
+            }
+            case START_TEST_MARGINAL_AGGREGATION_REQUEST: {
+                StartTestMarginalAggregationRequest m = (StartTestMarginalAggregationRequest) msg;
+                out.writeInt(m.width);
+                out.writeInt(m.nOfWorkers);
+                break;
+            }
+            case GENERATE_DATA_SET_REQUEST: {
+                GenerateDataSetRequest m = (GenerateDataSetRequest) msg;
+                out.writeInt(m.nOfTuples);
+                out.writeInt(m.domainWidth);
+                out.writeDouble(m.noiseRatio);
+                writeIntMatrix(out, m.centers);
+                writeIntMatrix(out, m.radii);
+                break;
+            }
+            case LOAD_DATA_SET_REQUEST: {
+                LoadDataSetRequest m = (LoadDataSetRequest) msg;
+                writeString(out, m.dataSetId);
+                writeString(out, m.executionId);
+                writeWorkers(out, m.workers);
+                out.writeDouble(m.scaleFactor);
+                break;
+            }
+            case LOAD_DATA_SET_RESPONSE: {
+                LoadDataSetResponse m = (LoadDataSetResponse) msg;
+                writeString(out, m.executionId);
+                writeRange(out, m.localDomain);
+                break;
+            }
+            case INIT_ROOT_REQUEST: {
+                InitRootRequest m = (InitRootRequest) msg;
+                writeString(out, m.executionId);
+                writeRange(out, m.globalDomain);
+                break;
+            }
+            case INIT_ROOT_RESPONSE: {
+                InitRootResponse m = (InitRootResponse) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.n);
+                writeDoubleArray(out, m.LS);
+                writeDoubleArray(out, m.SS);
+                break;
+            }
+            case SEND_MARGINALS_REQUEST: {
+                SendMarginalsRequest m = (SendMarginalsRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                writeString(out, m.receiverId);
+                out.writeLong(m.timeSent);
+                break;
+            }
+            case RECEIVE_MARGINALS_REQUEST: {
+                ReceiveMarginalsRequest m = (ReceiveMarginalsRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                out.writeLong(m.time);
+                writeString(out, m.workerId);
+                out.writeBoolean(m.marginals != null);
+                if (m.marginals != null) {
+                    m.marginals.writeTo(out);
+                }
+                break;
+            }
+            case RECEIVE_MARGINALS_RESPONSE: {
+                ReceiveMarginalsResponse m = (ReceiveMarginalsResponse) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                out.writeLong(m.time);
+                break;
+            }
+            case COMPUTE_BEST_SPLIT_REQUEST: {
+                ComputeBestSplitRequest m = (ComputeBestSplitRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                out.writeInt(m.globalN);
+                writeDoubleArray(out, m.globalLS);
+                writeDoubleArray(out, m.globalSS);
+                break;
+            }
+            case COMPUTE_BEST_SPLIT_RESPONSE: {
+                ComputeBestSplitResponse m = (ComputeBestSplitResponse) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                out.writeBoolean(m.split != null);
+                if (m.split != null) {
+                    out.writeInt(m.split.getPosition());
+                    out.writeDouble(m.split.getDeltaSSQ());
+                }
+                break;
+            }
+            case SPLIT_REQUEST: {
+                SplitRequest m = (SplitRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.splitDimension);
+                out.writeInt(m.splitPosition);
+                out.writeInt(m.leftId);
+                out.writeInt(m.rightId);
+                out.writeInt(m.globalN);
+                writeDoubleArray(out, m.globalLS);
+                writeDoubleArray(out, m.globalSS);
+                break;
+            }
+            case SPLIT_RESPONSE: {
+                SplitResponse m = (SplitResponse) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeBoolean(m.split != null);
+                if (m.split != null) {
+                    out.writeInt(m.split.leftN);
+                    writeDoubleArray(out, m.split.leftLS);
+                    writeDoubleArray(out, m.split.leftSS);
+                    out.writeInt(m.split.rightN);
+                    writeDoubleArray(out, m.split.rightLS);
+                    writeDoubleArray(out, m.split.rightSS);
+                }
+                break;
+            }
+            case COMPUTE_VALLEY_CRITERION_REQUEST: {
+                ComputeValleyCriterionRequest m = (ComputeValleyCriterionRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                out.writeDouble(m.delta);
+                break;
+            }
+            case COMPUTE_VALLEY_CRITERION_RESPONSE: {
+                ComputeValleyCriterionResponse m = (ComputeValleyCriterionResponse) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.blockId);
+                out.writeInt(m.dimension);
+                out.writeBoolean(m.satisfied);
+                break;
+            }
+            case RESTRICTED_COUNT_REQUEST: {
+                RestrictedCountRequest m = (RestrictedCountRequest) msg;
+                writeString(out, m.executionId);
+                writeIntegerList(out, m.blockIds);
+                if (m.restrictedRanges == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(m.restrictedRanges.size());
+                    for (Range r : m.restrictedRanges) {
+                        writeRange(out, r);
+                    }
+                }
+                break;
+            }
+            case RESTRICTED_COUNT_RESPONSE: {
+                RestrictedCountResponse m = (RestrictedCountResponse) msg;
+                writeString(out, m.executionId);
+                writeIntegerList(out, m.blockIds);
+                writeIntegerList(out, m.restrictedCount);
+                break;
+            }
+            case INTERMEDIATE_REFINEMENT_REQUEST: {
+                IntermediateRefinementRequest m = (IntermediateRefinementRequest) msg;
+                writeString(out, m.executionId);
+                writeIntegerList(out, m.clusterBlockIds);
+                writeDoubleArrayList(out, m.centroids);
+                writeDoubleArrayList(out, m.detailedRadii);
+                break;
+            }
+            case INTERMEDIATE_REFINEMENT_RESPONSE: {
+                IntermediateRefinementResponse m = (IntermediateRefinementResponse) msg;
+                writeString(out, m.executionId);
+                writeIntegerList(out, m.blockIds);
+                writeIntegerList(out, m.n);
+                writeDoubleArrayList(out, m.LS);
+                writeDoubleArrayList(out, m.SS);
+                break;
+            }
+            case FINAL_REFINEMENT_REQUEST: {
+                FinalRefinementRequest m = (FinalRefinementRequest) msg;
+                writeString(out, m.executionId);
+                writeDoubleArrayList(out, m.centroids);
+                writeDoubleArrayList(out, m.detailedRadii);
+                break;
+            }
+            case FINAL_REFINEMENT_RESPONSE: {
+                FinalRefinementResponse m = (FinalRefinementResponse) msg;
+                writeString(out, m.executionId);
+                writeIntArray(out, m.n);
+                writeDoubleMatrix(out, m.LS);
+                writeDoubleMatrix(out, m.SS);
+                out.writeInt(m.nOutliers);
+                break;
+            }
+            case DUMMY_MESSAGE: {
+                DummyMessage m = (DummyMessage) msg;
+                writeString(out, m.message);
+                out.writeLong(m.idMain);
+                break;
+            }
+            case RELEASE_MARGINALS_REQUEST: {
+                ReleaseMarginalsRequest m = (ReleaseMarginalsRequest) msg;
+                writeString(out, m.executionId);
+                writeIntegerList(out, m.blockIds);
+                break;
+            }
+            case CANCEL_EXECUTION_REQUEST: {
+                CancelExecutionRequest m = (CancelExecutionRequest) msg;
+                writeString(out, m.executionId);
+                break;
+            }
+            case RESUME_EXECUTION_REQUEST: {
+                ResumeExecutionRequest m = (ResumeExecutionRequest) msg;
+                writeString(out, m.executionId);
+                break;
+            }
+            case CHECKPOINT_REQUEST: {
+                CheckpointRequest m = (CheckpointRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.checkpointId);
+                out.writeInt(m.committedCheckpointId);
+                break;
+            }
+            case CHECKPOINT_RESPONSE: {
+                CheckpointResponse m = (CheckpointResponse) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.checkpointId);
+                out.writeBoolean(m.written);
+                break;
+            }
+            case RESTORE_CHECKPOINT_REQUEST: {
+                RestoreCheckpointRequest m = (RestoreCheckpointRequest) msg;
+                writeString(out, m.executionId);
+                out.writeInt(m.checkpointId);
+                writeRange(out, m.globalDomain);
+                writeIntegerList(out, m.pendingBlockIds);
+                break;
+            }
+            case RESTORE_CHECKPOINT_RESPONSE: {
+                RestoreCheckpointResponse m = (RestoreCheckpointResponse) msg;
+                writeString(out, m.executionId);
+                out.writeBoolean(m.restored);
+                break;
+            }
+            default:
+                throw new IOException("Unknown message tag " + tag);
+        }
+    }
+
+    static ClubsPMessage decodeFields(byte tag, ByteBufferDataInput in) throws IOException {
+        switch (tag) {
+            case WORKER_CONNECTION_REQUEST:
+                return new WorkerConnectionRequest(in.readInt());
+            case WORKER_CONNECTION_REQUEST_2:
+                return new WorkerConnectionRequest2(readString(in));
+            case WORKER_CONNECTION_RESPONSE:
+                return new WorkerConnectionResponse(readString(in));
+            case START_CLUSTERING_REQUEST:
+                return new StartClusteringRequest(readString(in));
+            case START_GENERATION_REQUEST: {
+                int nOfTuples = in.readInt();
+                int dimensionality = in.readInt();
+                int nOfClusters = in.readInt();
+                double noiseRatio = in.readDouble();
+                int domainWidth = in.readInt();
+                return new StartGenerationRequest(nOfTuples, dimensionality, nOfClusters, noiseRatio, domainWidth);
+            }
+            case START_TEST_MARGINAL_AGGREGATION_REQUEST: {
+                int width = in.readInt();
+                int nOfWorkers = in.readInt();
+                return new StartTestMarginalAggregationRequest(width, nOfWorkers);
+            }
+            case GENERATE_DATA_SET_REQUEST: {
+                int nOfTuples = in.readInt();
+                int domainWidth = in.readInt();
+                double noiseRatio = in.readDouble();
+                int[][] centers = readIntMatrix(in);
+                int[][] radii = readIntMatrix(in);
+                return new GenerateDataSetRequest(nOfTuples, domainWidth, noiseRatio, centers, radii);
+            }
+            case LOAD_DATA_SET_REQUEST: {
+                String dataSetId = readString(in);
+                String executionId = readString(in);
+                HashMap<String, RegisteredWorker> workers = readWorkers(in);
+                double scaleFactor = in.readDouble();
+                return new LoadDataSetRequest(dataSetId, executionId, workers, scaleFactor);
+            }
+            case LOAD_DATA_SET_RESPONSE: {
+                String executionId = readString(in);
+                return new LoadDataSetResponse(executionId, readRange(in));
+            }
+            case INIT_ROOT_REQUEST: {
+                String executionId = readString(in);
+                return new InitRootRequest(executionId, readRange(in));
+            }
+            case INIT_ROOT_RESPONSE: {
+                String executionId = readString(in);
+                int n = in.readInt();
+                double[] LS = readDoubleArray(in);
+                double[] SS = readDoubleArray(in);
+                return new InitRootResponse(executionId, n, LS, SS);
+            }
+            case SEND_MARGINALS_REQUEST: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                String receiverId = readString(in);
+                SendMarginalsRequest m = new SendMarginalsRequest(executionId, blockId, dimension, receiverId);
+                m.timeSent = in.readLong();
+                return m;
+            }
+            case RECEIVE_MARGINALS_REQUEST: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                long time = in.readLong();
+                String workerId = readString(in);
+                MarginalDistribution marginals = in.readBoolean() ? MarginalDistribution.read(in) : null;
+                return new ReceiveMarginalsRequest(executionId, blockId, dimension, marginals, time, workerId);
+            }
+            case RECEIVE_MARGINALS_RESPONSE: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                long time = in.readLong();
+                return new ReceiveMarginalsResponse(executionId, blockId, dimension, time);
+            }
+            case COMPUTE_BEST_SPLIT_REQUEST: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                int globalN = in.readInt();
+                double[] globalLS = readDoubleArray(in);
+                double[] globalSS = readDoubleArray(in);
+                return new ComputeBestSplitRequest(executionId, blockId, dimension, globalN, globalLS, globalSS);
+            }
+            case COMPUTE_BEST_SPLIT_RESPONSE: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                BestSplitResult split = null;
+                if (in.readBoolean()) {
+                    int position = in.readInt();
+                    split = new BestSplitResult(position, in.readDouble());
+                }
+                return new ComputeBestSplitResponse(executionId, blockId, dimension, split);
+            }
+            case SPLIT_REQUEST: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int splitDimension = in.readInt();
+                int splitPosition = in.readInt();
+                int leftId = in.readInt();
+                int rightId = in.readInt();
+                int globalN = in.readInt();
+                double[] globalLS = readDoubleArray(in);
+                double[] globalSS = readDoubleArray(in);
+                return new SplitRequest(executionId, blockId, splitDimension, splitPosition, leftId, rightId, globalN, globalLS, globalSS);
+            }
+            case SPLIT_RESPONSE: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                SplitResult split = null;
+                if (in.readBoolean()) {
+                    int leftN = in.readInt();
+                    double[] leftLS = readDoubleArray(in);
+                    double[] leftSS = readDoubleArray(in);
+                    int rightN = in.readInt();
+                    double[] rightLS = readDoubleArray(in);
+                    double[] rightSS = readDoubleArray(in);
+                    split = new SplitResult(leftN, leftLS, leftSS, rightN, rightLS, rightSS);
+                }
+                return new SplitResponse(executionId, blockId, split);
+            }
+            case COMPUTE_VALLEY_CRITERION_REQUEST: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                return new ComputeValleyCriterionRequest(executionId, blockId, dimension, in.readDouble());
+            }
+            case COMPUTE_VALLEY_CRITERION_RESPONSE: {
+                String executionId = readString(in);
+                int blockId = in.readInt();
+                int dimension = in.readInt();
+                return new ComputeValleyCriterionResponse(executionId, blockId, dimension, in.readBoolean());
+            }
+            case RESTRICTED_COUNT_REQUEST: {
+                String executionId = readString(in);
+                ArrayList<Integer> blockIds = readIntegerList(in);
+                ArrayList<Range> restrictedRanges = null;
+                int size = in.readInt();
+                if (size >= 0) {
+                    restrictedRanges = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        restrictedRanges.add(readRange(in));
+                    }
+                }
+                return new RestrictedCountRequest(executionId, blockIds, restrictedRanges);
+            }
+            case RESTRICTED_COUNT_RESPONSE: {
+                String executionId = readString(in);
+                ArrayList<Integer> blockIds = readIntegerList(in);
+                return new RestrictedCountResponse(executionId, blockIds, readIntegerList(in));
+            }
+            case INTERMEDIATE_REFINEMENT_REQUEST: {
+                String executionId = readString(in);
+                ArrayList<Integer> clusterBlockIds = readIntegerList(in);
+                ArrayList<double[]> centroids = readDoubleArrayList(in);
+                ArrayList<double[]> detailedRadii = readDoubleArrayList(in);
+                return new IntermediateRefinementRequest(executionId, clusterBlockIds, centroids, detailedRadii);
+            }
+            case INTERMEDIATE_REFINEMENT_RESPONSE: {
+                String executionId = readString(in);
+                ArrayList<Integer> blockIds = readIntegerList(in);
+                ArrayList<Integer> n = readIntegerList(in);
+                ArrayList<double[]> LS = readDoubleArrayList(in);
+                ArrayList<double[]> SS = readDoubleArrayList(in);
+                return new IntermediateRefinementResponse(executionId, blockIds, n, LS, SS);
+            }
+            case FINAL_REFINEMENT_REQUEST: {
+                String executionId = readString(in);
+                ArrayList<double[]> centroids = readDoubleArrayList(in);
+                ArrayList<double[]> detailedRadii = readDoubleArrayList(in);
+                return new FinalRefinementRequest(executionId, centroids, detailedRadii);
+            }
+            case FINAL_REFINEMENT_RESPONSE: {
+                String executionId = readString(in);
+                int[] n = readIntArray(in);
+                double[][] LS = readDoubleMatrix(in);
+                double[][] SS = readDoubleMatrix(in);
+                return new FinalRefinementResponse(executionId, n, LS, SS, in.readInt());
+            }
+            case DUMMY_MESSAGE: {
+                String message = readString(in);
+                return new DummyMessage(message, in.readLong());
+            }
+            case RELEASE_MARGINALS_REQUEST: {
+                String executionId = readString(in);
+                return new ReleaseMarginalsRequest(executionId, readIntegerList(in));
+            }
+            case CANCEL_EXECUTION_REQUEST:
+                return new CancelExecutionRequest(readString(in));
+            case RESUME_EXECUTION_REQUEST:
+                return new ResumeExecutionRequest(readString(in));
+            case CHECKPOINT_REQUEST: {
+                String executionId = readString(in);
+                int checkpointId = in.readInt();
+                return new CheckpointRequest(executionId, checkpointId, in.readInt());
+            }
+            case CHECKPOINT_RESPONSE: {
+                String executionId = readString(in);
+                int checkpointId = in.readInt();
+                return new CheckpointResponse(executionId, checkpointId, in.readBoolean());
+            }
+            case RESTORE_CHECKPOINT_REQUEST: {
+                String executionId = readString(in);
+                int checkpointId = in.readInt();
+                Range globalDomain = readRange(in);
+                return new RestoreCheckpointRequest(executionId, checkpointId, globalDomain, readIntegerList(in));
+            }
+            case RESTORE_CHECKPOINT_RESPONSE: {
+                String executionId = readString(in);
+                return new RestoreCheckpointResponse(executionId, in.readBoolean());
+            }
+            default:
+                throw new IOException("Unknown message tag " + tag);
+        }
+    }
+
+    static void writeString(ByteBufferDataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    static String readString(ByteBufferDataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeIntArray(ByteBufferDataOutput out, int[] v) {
+        if (v == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(v.length);
+            out.writeInts(v);
+        }
+    }
+
+    static int[] readIntArray(ByteBufferDataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        int[] v = new int[length];
+        in.readInts(v);
+        return v;
+    }
+
+    static void writeDoubleArray(ByteBufferDataOutput out, double[] v) {
+        if (v == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(v.length);
+            out.writeDoubles(v);
+        }
+    }
+
+    static double[] readDoubleArray(ByteBufferDataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        double[] v = new double[length];
+        in.readDoubles(v);
+        return v;
+    }
+
+    static void writeIntMatrix(ByteBufferDataOutput out, int[][] v) {
+        if (v == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(v.length);
+            for (int[] row : v) {
+                writeIntArray(out, row);
+            }
+        }
+    }
+
+    static int[][] readIntMatrix(ByteBufferDataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        int[][] v = new int[length][];
+        for (int i = 0; i < length; i++) {
+            v[i] = readIntArray(in);
+        }
+        return v;
+    }
+
+    static void writeDoubleMatrix(ByteBufferDataOutput out, double[][] v) {
+        if (v == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(v.length);
+            for (double[] row : v) {
+                writeDoubleArray(out, row);
+            }
+        }
+    }
+
+    static double[][] readDoubleMatrix(ByteBufferDataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        double[][] v = new double[length][];
+        for (int i = 0; i < length; i++) {
+            v[i] = readDoubleArray(in);
+        }
+        return v;
+    }
+
+    static void writeIntegerList(ByteBufferDataOutput out, ArrayList<Integer> v) {
+        if (v == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(v.size());
+            for (Integer i : v) {
+                out.writeInt(i);
+            }
+        }
+    }
+
+    static ArrayList<Integer> readIntegerList(ByteBufferDataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<Integer> v = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            v.add(in.readInt());
+        }
+        return v;
+    }
+
+    static void writeDoubleArrayList(ByteBufferDataOutput out, ArrayList<double[]> v) {
+        if (v == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(v.size());
+            for (double[] a : v) {
+                writeDoubleArray(out, a);
+            }
+        }
+    }
+
+    static ArrayList<double[]> readDoubleArrayList(ByteBufferDataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        ArrayList<double[]> v = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            v.add(readDoubleArray(in));
+        }
+        return v;
+    }
+
+    static void writeRange(ByteBufferDataOutput out, Range r) {
+        out.writeBoolean(r != null);
+        if (r != null) {
+            writeIntArray(out, r.inf);
+            writeIntArray(out, r.sup);
+        }
+    }
+
+    static Range readRange(ByteBufferDataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int[] inf = readIntArray(in);
+        return new Range(inf, readIntArray(in));
+    }
+
+    static void writeWorkers(ByteBufferDataOutput out, HashMap<String, RegisteredWorker> workers) throws IOException {
+        if (workers == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(workers.size());
+            for (Map.Entry<String, RegisteredWorker> e : workers.entrySet()) {
+                writeString(out, e.getKey());
+                RegisteredWorker w = e.getValue();
+                writeString(out, w.id);
+                writeString(out, w.ip);
+                out.writeInt(w.port);
+            }
+        }
+    }
+
+    static HashMap<String, RegisteredWorker> readWorkers(ByteBufferDataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        HashMap<String, RegisteredWorker> workers = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            String id = readString(in);
+            String ip = readString(in);
+            workers.put(key, new RegisteredWorker(id, ip, in.readInt()));
+        }
+        return workers;
+    }
+
+    //adapter used to write Java serialized messages into the frame
+    static class ByteBufferOutputStream extends OutputStream {
+
+        ByteBufferDataOutput out;
+
+        ByteBufferOutputStream(ByteBufferDataOutput out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.messages;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes length-prefixed frames encoded with MessageCodec. The encoding
+ * buffer is reused across messages, therefore this class is not thread-safe
+ * and callers must synchronize on it, as done for the ObjectOutputStreams it
+ * replaces.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class MessageOutputStream implements AutoCloseable {
+
+    static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    static final int MAX_RETAINED_BUFFER_SIZE = 1 << 24; //larger buffers are dropped after the message has been sent
+
+    OutputStream out;
+    ByteBufferDataOutput buffer = new ByteBufferDataOutput(INITIAL_BUFFER_SIZE);
+
+    public MessageOutputStream(OutputStream out) {
+        this.out = new BufferedOutputStream(out, INITIAL_BUFFER_SIZE);
+    }
+
+    //returns the length of the frame, length prefix included
+    public int writeMessage(ClubsPMessage msg) throws IOException {
+        buffer.clear();
+        MessageCodec.encode(msg, buffer);
+        ByteBuffer frame = buffer.getBuffer();
+        int length = frame.position();
+        out.write(frame.array(), frame.arrayOffset(), length);
+        out.flush();
+        if (frame.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new ByteBufferDataOutput(INITIAL_BUFFER_SIZE);
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014 ScAi, CSD, UCLA.
+ * Copyright 2015 ScAi, CSD, UCLA.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -13,36 +13,26 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package edu.ucla.cs.scai.clubsp.commons;
+package edu.ucla.cs.scai.clubsp.messages;
+
+import java.util.ArrayList;
 
 /**
  *
  * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
  */
-public class DataSetPoint {
-
-    public int[] p;
-    public int filePosition;
-
-    public DataSetPoint(int[] p, int filePosition) {
-        this.p = p;
-        this.filePosition = filePosition;
-    }
+public class ReleaseMarginalsRequest extends ExecutionMessage {
 
-    public int[] getP() {
-        return p;
-    }
-
-    public void setP(int[] p) {
-        this.p = p;
-    }
+    public ArrayList<Integer> blockIds; //the blocks that will not be split
 
-    public int getFilePosition() {
-        return filePosition;
+    public ReleaseMarginalsRequest(String executionId, ArrayList<Integer> blockIds) {
+        super(executionId);
+        this.blockIds = blockIds;
     }
 
-    public void setFilePosition(int filePosition) {
-        this.filePosition = filePosition;
+    @Override
+    public String toString() {
+        return "ReleaseMarginalsRequest{" + "blockIds=" + blockIds + '}';
     }
 
 }
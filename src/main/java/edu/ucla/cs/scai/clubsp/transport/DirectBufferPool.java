@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Pool of direct buffers used for the outgoing frames. Capacities are powers
+ * of two; buffers larger than the largest pooled size are allocated on demand
+ * and dropped when released, and released buffers are dropped when the pool
+ * already retains maxRetainedBytes.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class DirectBufferPool {
+
+    static final int MIN_SHIFT = 12; //4 KB
+    static final int MAX_SHIFT = 24; //16 MB
+
+    final ArrayList<ArrayDeque<ByteBuffer>> free = new ArrayList<>(); //free.get(c) holds the buffers of size class c
+    final long maxRetainedBytes;
+    long retainedBytes;
+
+    public DirectBufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+            free.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    //the returned buffer is cleared and has limit equal to size
+    public ByteBuffer acquire(int size) {
+        int c = sizeClass(size);
+        if (c >= free.size()) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer b;
+        synchronized (this) {
+            b = free.get(c).poll();
+            if (b != null) {
+                retainedBytes -= b.capacity();
+            }
+        }
+        if (b == null) {
+            b = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+        }
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    public void release(ByteBuffer b) {
+        int c = sizeClass(b.capacity());
+        if (c >= free.size() || b.capacity() != 1 << (c + MIN_SHIFT)) {
+            return;
+        }
+        synchronized (this) {
+            if (retainedBytes + b.capacity() <= maxRetainedBytes) {
+                free.get(c).add(b);
+                retainedBytes += b.capacity();
+            }
+        }
+    }
+}
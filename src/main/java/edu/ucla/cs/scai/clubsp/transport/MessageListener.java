@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.transport;
+
+import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
+
+/**
+ * Receives the messages read from an NioConnection. The messages of a
+ * connection are delivered one at a time, in the order they were sent.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public interface MessageListener {
+
+    void messageReceived(NioConnection connection, ClubsPMessage msg);
+}
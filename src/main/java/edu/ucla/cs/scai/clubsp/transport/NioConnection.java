@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.transport;
+
+import edu.ucla.cs.scai.clubsp.commons.SerialExecutor;
+import edu.ucla.cs.scai.clubsp.messages.ByteBufferDataOutput;
+import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
+import edu.ucla.cs.scai.clubsp.messages.MessageCodec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A connection handled by an NioTransport. Messages are encoded by the
+ * sending thread into a direct buffer and queued; the selector thread writes
+ * the queue with gathering writes. Incoming frames are assembled by the
+ * selector thread and decoded and delivered to the listener on the dispatch
+ * pool, one at a time.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class NioConnection implements PeerChannel {
+
+    static final int READ_BUFFER_SIZE = 1 << 18;
+    static final int MAX_GATHERED_BUFFERS = 64;
+    static final int MAX_RETAINED_ENCODING_BUFFER_SIZE = 1 << 24;
+
+    //each sending thread encodes its messages into its own buffer, which is then copied into a pooled direct buffer
+    static final ThreadLocal<ByteBufferDataOutput> encodingBuffer = new ThreadLocal<ByteBufferDataOutput>() {
+        @Override
+        protected ByteBufferDataOutput initialValue() {
+            return new ByteBufferDataOutput(1 << 16);
+        }
+    };
+
+    final NioTransport transport;
+    final SocketChannel channel;
+    SelectionKey key; //only used by the selector thread
+    volatile String name;
+    volatile MessageListener listener;
+    final SerialExecutor dispatcher;
+
+    //read state, only used by the selector thread
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    ByteBuffer frame;
+
+    //write state, guarded by this
+    final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    boolean flushRequested;
+    boolean closed;
+    int peakQueueDepth;
+    long sentMessages, sentBytes;
+
+    NioConnection(NioTransport transport, SocketChannel channel, String name, MessageListener listener) {
+        this.transport = transport;
+        this.channel = channel;
+        this.name = name;
+        this.listener = listener;
+        dispatcher = new SerialExecutor(transport.dispatchPool);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public String getRemoteHost() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    //the following messages of this connection will be delivered to the new listener
+    public void setListener(MessageListener listener) {
+        this.listener = listener;
+    }
+
+    //can be called by any thread, sends to different connections do not wait for each other
+    @Override
+    public void send(ClubsPMessage msg) throws IOException {
+        ByteBufferDataOutput out = encodingBuffer.get();
+        out.clear();
+        MessageCodec.encode(msg, out);
+        ByteBuffer encoded = out.getBuffer();
+        encoded.flip();
+        ByteBuffer b = transport.bufferPool.acquire(encoded.remaining());
+        b.put(encoded);
+        b.flip();
+        if (encoded.capacity() > MAX_RETAINED_ENCODING_BUFFER_SIZE) {
+            encodingBuffer.remove();
+        } else {
+            out.clear();
+        }
+        boolean request;
+        synchronized (this) {
+            if (closed) {
+                transport.bufferPool.release(b);
+                throw new IOException("Connection to " + name + " closed");
+            }
+            outbound.add(b);
+            peakQueueDepth = Math.max(peakQueueDepth, outbound.size());
+            sentMessages++;
+            sentBytes += b.remaining();
+            request = !flushRequested;
+            flushRequested = true;
+        }
+        if (request) {
+            transport.requestFlush(this);
+        }
+    }
+
+    //called by the selector thread, writes as much as possible of the outbound queue
+    void flush() throws IOException {
+        ByteBuffer[] batch = new ByteBuffer[MAX_GATHERED_BUFFERS];
+        while (true) {
+            int n = 0;
+            synchronized (this) {
+                flushRequested = false;
+                for (Iterator<ByteBuffer> it = outbound.iterator(); it.hasNext() && n < batch.length;) {
+                    batch[n++] = it.next();
+                }
+            }
+            if (n == 0) {
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            channel.write(batch, 0, n);
+            int written = 0;
+            while (written < n && !batch[written].hasRemaining()) {
+                written++;
+            }
+            synchronized (this) {
+                for (int i = 0; i < written; i++) {
+                    transport.bufferPool.release(outbound.poll());
+                }
+            }
+            if (written < n) {
+                //the socket buffer is full, the selector will tell when writing can be resumed
+                if (key != null && key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return outbound.size();
+    }
+
+    @Override
+    public synchronized int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    @Override
+    public synchronized long getSentMessages() {
+        return sentMessages;
+    }
+
+    @Override
+    public synchronized long getSentBytes() {
+        return sentBytes;
+    }
+
+    synchronized boolean hasPendingOutput() {
+        return !outbound.isEmpty();
+    }
+
+    //called by the selector thread, returns false when the peer closed the connection
+    boolean read() throws IOException {
+        while (true) {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                if (frame != null || readBuffer.position() > 0) {
+                    throw new EOFException("Connection from " + name + " closed in the middle of a message");
+                }
+                return false;
+            }
+            if (n == 0) {
+                return true;
+            }
+            readBuffer.flip();
+            while (true) {
+                if (frame == null) {
+                    if (readBuffer.remaining() < 4) {
+                        break;
+                    }
+                    int length = readBuffer.getInt();
+                    if (length <= 0 || length > MessageCodec.MAX_FRAME_LENGTH) { //the connection is closed by the caller
+                        throw new IOException("Invalid frame length " + length + " from " + name);
+                    }
+                    frame = ByteBuffer.allocate(length);
+                }
+                int k = Math.min(frame.remaining(), readBuffer.remaining());
+                int limit = readBuffer.limit();
+                readBuffer.limit(readBuffer.position() + k);
+                frame.put(readBuffer);
+                readBuffer.limit(limit);
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                frame.flip();
+                dispatch(frame);
+                frame = null;
+            }
+            readBuffer.compact();
+        }
+    }
+
+    void dispatch(final ByteBuffer f) {
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ClubsPMessage msg = MessageCodec.decode(f);
+                    listener.messageReceived(NioConnection.this, msg);
+                } catch (Exception e) {
+                    System.out.println("Error handling a message from " + name + ": " + e);
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    //called by the selector thread
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            closed = true;
+            for (ByteBuffer b : outbound) {
+                transport.bufferPool.release(b);
+            }
+            outbound.clear();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking transport: a single selector thread accepts connections, reads
+ * the incoming frames and writes the outgoing ones for all the peers, while
+ * the messages are decoded and handled on a shared pool of fixed size, set
+ * with the system property clubsp.transport.threads (by default the number of
+ * processors), whatever the number of peers. It is enabled with
+ * the system property clubsp.transport=nio, and uses the same frames as
+ * MessageOutputStream and MessageInputStream, so peers using different
+ * transports can talk to each other.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class NioTransport extends Thread {
+
+    public static final boolean ENABLED = "nio".equals(System.getProperty("clubsp.transport"));
+
+    final Selector selector;
+    final MessageListener acceptListener; //listener of the accepted connections, until they set their own
+    static final int THREADS = Math.max(1, Integer.getInteger("clubsp.transport.threads", Runtime.getRuntime().availableProcessors()));
+    final ExecutorService dispatchPool = Executors.newFixedThreadPool(THREADS);
+    final DirectBufferPool bufferPool = new DirectBufferPool(64L << 20);
+    final ConcurrentLinkedQueue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+    public NioTransport(MessageListener acceptListener) throws IOException {
+        super("NioTransport");
+        this.acceptListener = acceptListener;
+        selector = Selector.open();
+    }
+
+    //must be called before the transport is started
+    public void listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port), 1000);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    //opens a connection to the peer, the messages it sends back are delivered to the accept listener
+    public NioConnection connect(String host, int port, String name) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        configure(channel);
+        NioConnection connection = new NioConnection(this, channel, name, acceptListener);
+        pendingRegistrations.add(connection);
+        selector.wakeup();
+        return connection;
+    }
+
+    static void configure(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setKeepAlive(true);
+    }
+
+    void requestFlush(NioConnection connection) {
+        pendingFlushes.add(connection);
+        selector.wakeup();
+    }
+
+    void register(NioConnection connection) throws IOException {
+        int ops = SelectionKey.OP_READ;
+        if (connection.hasPendingOutput()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key = connection.channel.register(selector, ops, connection);
+    }
+
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                NioConnection connection;
+                while ((connection = pendingRegistrations.poll()) != null) {
+                    register(connection);
+                }
+                while ((connection = pendingFlushes.poll()) != null) {
+                    flush(connection);
+                }
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    connection = (NioConnection) key.attachment();
+                    if (key.isWritable()) {
+                        flush(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        System.out.println("Error: the NioTransport stopped working!!!");
+    }
+
+    void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        configure(channel);
+        register(new NioConnection(this, channel, channel.socket().getRemoteSocketAddress().toString(), acceptListener));
+    }
+
+    void flush(NioConnection connection) {
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing to " + connection.name + ": " + e);
+            connection.close();
+        }
+    }
+
+    void read(NioConnection connection) {
+        try {
+            if (!connection.read()) {
+                System.out.println("Connection from " + connection.name + " closed");
+                connection.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading from " + connection.name + ": " + e);
+            connection.close();
+        }
+    }
+}
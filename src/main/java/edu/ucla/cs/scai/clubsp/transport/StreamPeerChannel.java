@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.transport;
+
+import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
+import edu.ucla.cs.scai.clubsp.messages.MessageOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PeerChannel writing to a blocking socket stream. The stream has its own
+ * lock, and the queue depth is the number of threads sending or waiting to
+ * send on it. The lock is fair, so that the threads of concurrent executions
+ * get the bandwidth of the stream in turn.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+public class StreamPeerChannel implements PeerChannel {
+
+    final String name;
+    final MessageOutputStream out;
+    final AtomicInteger queueDepth = new AtomicInteger();
+    final AtomicInteger peakQueueDepth = new AtomicInteger();
+    final ReentrantLock lock = new ReentrantLock(true);
+    long sentMessages, sentBytes; //guarded by lock
+
+    public StreamPeerChannel(String name, MessageOutputStream out) {
+        this.name = name;
+        this.out = out;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void send(ClubsPMessage msg) throws IOException {
+        int depth = queueDepth.incrementAndGet();
+        int peak;
+        while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth)) {
+        }
+        try {
+            lock.lock();
+            try {
+                sentBytes += out.writeMessage(msg);
+                sentMessages++;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    @Override
+    public long getSentMessages() {
+        lock.lock();
+        try {
+            return sentMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getSentBytes() {
+        lock.lock();
+        try {
+            return sentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
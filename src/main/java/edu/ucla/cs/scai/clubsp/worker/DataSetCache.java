@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import edu.ucla.cs.scai.clubsp.commons.MarginalDistributionWithSquares;
+import edu.ucla.cs.scai.clubsp.commons.PointStore;
+import edu.ucla.cs.scai.clubsp.commons.Range;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the data sets loaded by a worker, together with the local marginals of
+ * their root, so that the next executions on the same data set skip both the
+ * loading and the first scan of the points. A data set is identified by its
+ * file and by the scale factor used to load it, and it is discarded when the
+ * modification time or the length of the file change. The least recently used
+ * data sets are evicted once the budget, set in MB with the system property
+ * clubsp.worker.dataSetCache, is exceeded. With no budget nothing is cached.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+class DataSetCache {
+
+    static final long BUDGET = Long.getLong("clubsp.worker.dataSetCache", 0) << 20;
+
+    static class Entry {
+
+        final String key;
+        final long lastModified;
+        final long length;
+        PointStore points;
+        Range localDomain;
+        Range globalDomain; //the global domain the root marginals were computed with
+        MarginalDistributionWithSquares[] rootMarginals;
+
+        //the file is checked before being loaded, a later change invalidates the entry
+        Entry(String fileName, double scaleFactor) {
+            File f = new File(fileName);
+            key = getKey(fileName, scaleFactor);
+            lastModified = f.lastModified();
+            length = f.length();
+        }
+
+        long getSizeInBytes() {
+            long size = 4L * points.size() * points.getDimensionality();
+            if (rootMarginals != null) {
+                for (MarginalDistributionWithSquares m : rootMarginals) {
+                    size += m.getSizeInBytes();
+                }
+            }
+            return size;
+        }
+
+        void releaseRootMarginals() {
+            if (rootMarginals != null) {
+                for (MarginalDistributionWithSquares m : rootMarginals) {
+                    m.release();
+                }
+                rootMarginals = null;
+                globalDomain = null;
+            }
+        }
+    }
+
+    final long budget;
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); //in access order
+    long sizeInBytes;
+
+    DataSetCache(long budget) {
+        this.budget = budget;
+    }
+
+    static String getKey(String fileName, double scaleFactor) {
+        return fileName + " " + scaleFactor;
+    }
+
+    //returns the data set loaded from the file with the scale factor, if it is cached and the file did not change
+    synchronized Entry get(String fileName, double scaleFactor) {
+        String key = getKey(fileName, scaleFactor);
+        Entry e = entries.get(key);
+        if (e != null) {
+            File f = new File(fileName);
+            if (f.lastModified() != e.lastModified || f.length() != e.length) {
+                System.out.println("The cached data set " + key + " is out of date");
+                remove(e);
+                return null;
+            }
+        }
+        return e;
+    }
+
+    //returns false if the data set does not fit in the budget
+    synchronized boolean put(Entry e, PointStore points, Range localDomain) {
+        e.points = points;
+        e.localDomain = localDomain;
+        Entry previous = entries.get(e.key);
+        if (previous != null) {
+            remove(previous);
+        }
+        if (e.getSizeInBytes() > budget) {
+            return false;
+        }
+        entries.put(e.key, e);
+        sizeInBytes += e.getSizeInBytes();
+        evict(e);
+        return true;
+    }
+
+    //returns copies of the root marginals, which can be released by the execution,
+    //or null if they were not computed with the same global domain
+    synchronized MarginalDistributionWithSquares[] getRootMarginals(Entry e, Range globalDomain) {
+        if (e.rootMarginals == null || !Arrays.equals(e.globalDomain.inf, globalDomain.inf) || !Arrays.equals(e.globalDomain.sup, globalDomain.sup)) {
+            return null;
+        }
+        MarginalDistributionWithSquares[] res = new MarginalDistributionWithSquares[e.rootMarginals.length];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = e.rootMarginals[i].getCopy();
+        }
+        return res;
+    }
+
+    //the root marginals are copied, as the execution releases its own ones
+    synchronized void setRootMarginals(Entry e, Range globalDomain, MarginalDistributionWithSquares[] rootMarginals) {
+        if (entries.get(e.key) != e) { //the entry was evicted
+            return;
+        }
+        sizeInBytes -= e.getSizeInBytes();
+        e.releaseRootMarginals();
+        e.globalDomain = globalDomain;
+        e.rootMarginals = new MarginalDistributionWithSquares[rootMarginals.length];
+        for (int i = 0; i < rootMarginals.length; i++) {
+            e.rootMarginals[i] = rootMarginals[i].getCopy();
+        }
+        if (e.getSizeInBytes() > budget) { //only the points are kept
+            e.releaseRootMarginals();
+        }
+        sizeInBytes += e.getSizeInBytes();
+        evict(e);
+    }
+
+    //evicts the least recently used entries, except the one just used, until the budget is met
+    private void evict(Entry used) {
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext() && sizeInBytes > budget;) {
+            Entry e = it.next().getValue();
+            if (e != used) {
+                System.out.println("Data set " + e.key + " evicted from the cache");
+                it.remove();
+                sizeInBytes -= e.getSizeInBytes();
+                e.releaseRootMarginals();
+            }
+        }
+    }
+
+    private void remove(Entry e) {
+        entries.remove(e.key);
+        sizeInBytes -= e.getSizeInBytes();
+        e.releaseRootMarginals();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Admits the executions on a worker according to their estimated memory. With
+ * the system property clubsp.worker.memoryBudget, in MB, an execution starts
+ * only when its estimate fits in the budget left by the running executions, or
+ * when no other execution is running. The executions are admitted in the order
+ * of their requests, which is the same on all the workers, since the master
+ * sends them in the same order to all of them: the oldest waiting execution
+ * is never blocked on a worker by a younger one, and the workers cannot wait
+ * for each other. With no budget, every execution is admitted immediately.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+class ExecutionAdmission {
+
+    static final long BUDGET = Long.getLong("clubsp.worker.memoryBudget", 0) << 20;
+
+    static class Request {
+
+        final String executionId;
+        long estimate;
+        final Runnable start;
+
+        Request(String executionId, long estimate, Runnable start) {
+            this.executionId = executionId;
+            this.estimate = estimate;
+            this.start = start;
+        }
+    }
+
+    final long budget;
+    final HashMap<String, Request> admitted = new HashMap<>();
+    final ArrayDeque<Request> waiting = new ArrayDeque<>();
+    long reserved;
+
+    ExecutionAdmission(long budget) {
+        this.budget = budget;
+    }
+
+    //start is run when the execution is admitted, by the calling thread if it is admitted immediately
+    void submit(String executionId, long estimate, Runnable start) {
+        Request r = new Request(executionId, estimate, start);
+        synchronized (this) {
+            waiting.add(r);
+            System.out.println("Execution " + executionId + " requires an estimated " + estimate + " bytes, " + reserved + " bytes reserved by " + admitted.size() + " running executions");
+        }
+        startAdmitted();
+    }
+
+    //the estimate is corrected once the data set is loaded
+    synchronized void update(String executionId, long estimate) {
+        Request r = admitted.get(executionId);
+        if (r != null) {
+            reserved += estimate - r.estimate;
+            r.estimate = estimate;
+        }
+    }
+
+    synchronized boolean isAdmitted(String executionId) {
+        return admitted.containsKey(executionId);
+    }
+
+    //true if the execution is admitted or waiting
+    synchronized boolean contains(String executionId) {
+        if (admitted.containsKey(executionId)) {
+            return true;
+        }
+        for (Request r : waiting) {
+            if (r.executionId.equals(executionId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //called when an execution terminates or is cancelled, also if it is still waiting
+    void release(String executionId) {
+        synchronized (this) {
+            Request r = admitted.remove(executionId);
+            if (r != null) {
+                reserved -= r.estimate;
+            } else {
+                for (Iterator<Request> it = waiting.iterator(); it.hasNext();) {
+                    if (it.next().executionId.equals(executionId)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        startAdmitted();
+    }
+
+    private void startAdmitted() {
+        ArrayList<Request> started = new ArrayList<>();
+        synchronized (this) {
+            while (!waiting.isEmpty() && (budget <= 0 || admitted.isEmpty() || reserved + waiting.peek().estimate <= budget)) {
+                Request r = waiting.poll();
+                admitted.put(r.executionId, r);
+                reserved += r.estimate;
+                started.add(r);
+            }
+            if (!waiting.isEmpty()) {
+                System.out.println(waiting.size() + " executions waiting for memory, " + reserved + " bytes reserved out of " + budget);
+            }
+        }
+        for (Request r : started) {
+            System.out.println("Execution " + r.executionId + " admitted");
+            r.start.run();
+        }
+    }
+}
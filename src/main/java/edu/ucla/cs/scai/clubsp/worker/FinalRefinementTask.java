@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import edu.ucla.cs.scai.clubsp.commons.BoxIndex;
+import edu.ucla.cs.scai.clubsp.commons.PointStore;
+import edu.ucla.cs.scai.clubsp.commons.Utils;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Assigns the points of a slice of the partition to the nearest cluster, for
+ * the final refinement. The slice is split in halves until it is small
+ * enough, the halves are executed in parallel, and the sums of the clusters
+ * computed by the halves are added when they are joined.
+ * With clubsp.worker.deterministicReduction the tasks only assign the points,
+ * and the sums are computed afterwards by accumulate, in the order of the
+ * points, so that they are bit-identical to those of a serial pass.
+ * Unless clubsp.worker.prunedAssignment is false, the distance of a point is
+ * only computed from the clusters whose ellipsoid bounding box contains it,
+ * found with a BoxIndex. A point outside every ellipsoid is compared with all
+ * the clusters, so that it gets the same label as with the exhaustive search.
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+class FinalRefinementTask extends RecursiveTask<FinalRefinementTask.ClusterSums> {
+
+    private static final long serialVersionUID = 1L;
+
+    static final boolean DETERMINISTIC_REDUCTION = Boolean.getBoolean("clubsp.worker.deterministicReduction");
+    static final boolean PRUNED_ASSIGNMENT = Boolean.parseBoolean(System.getProperty("clubsp.worker.prunedAssignment", "true"));
+    static final int MIN_SLICE = 4096;
+
+    final PointStore dataSet;
+    final double[][] centroids;
+    final double[][] detailedRadii;
+    final BoxIndex index; //bounding boxes of the ellipsoids, null for the exhaustive search
+    final int[] labels; //labels[j - first] is 1 + the index of the nearest cluster of the j-th point
+    final int first; //the points are assigned in chunks, and labels contains the labels of the current chunk
+    final int from, to;
+    final int minSlice;
+
+    FinalRefinementTask(PointStore dataSet, double[][] centroids, double[][] detailedRadii, BoxIndex index, int[] labels, int first, int from, int to, int minSlice) {
+        this.dataSet = dataSet;
+        this.centroids = centroids;
+        this.detailedRadii = detailedRadii;
+        this.index = index;
+        this.labels = labels;
+        this.first = first;
+        this.from = from;
+        this.to = to;
+        this.minSlice = minSlice;
+    }
+
+    //the slices are small enough to keep all the threads busy, but not smaller than MIN_SLICE
+    //labels[0] will be the label of the point from
+    static FinalRefinementTask forChunk(PointStore dataSet, double[][] centroids, double[][] detailedRadii, BoxIndex index, int[] labels, int from, int to, int threads) {
+        int minSlice = Math.max(MIN_SLICE, (to - from) / (8 * threads));
+        return new FinalRefinementTask(dataSet, centroids, detailedRadii, index, labels, from, from, to, minSlice);
+    }
+
+    //indexes the bounding boxes of the ellipsoids
+    //the distance ignores the dimensions with radius 0, so along them the box is unbounded
+    static BoxIndex ellipsoidIndex(double[][] centroids, double[][] detailedRadii) {
+        double[][] boxInf = new double[centroids.length][];
+        double[][] boxSup = new double[centroids.length][];
+        for (int i = 0; i < centroids.length; i++) {
+            int dimensionality = centroids[i].length;
+            boxInf[i] = new double[dimensionality];
+            boxSup[i] = new double[dimensionality];
+            for (int k = 0; k < dimensionality; k++) {
+                if (detailedRadii[i][k] == 0) {
+                    boxInf[i][k] = Double.NEGATIVE_INFINITY;
+                    boxSup[i][k] = Double.POSITIVE_INFINITY;
+                } else {
+                    //the box is slightly enlarged, so that rounding can not exclude a point inside the ellipsoid
+                    double r = detailedRadii[i][k] * (1 + 1e-9);
+                    boxInf[i][k] = centroids[i][k] - r;
+                    boxSup[i][k] = centroids[i][k] + r;
+                }
+            }
+        }
+        return new BoxIndex(boxInf, boxSup);
+    }
+
+    @Override
+    protected ClusterSums compute() {
+        if (to - from <= minSlice) {
+            return assign();
+        }
+        int mid = (from + to) >>> 1;
+        FinalRefinementTask left = new FinalRefinementTask(dataSet, centroids, detailedRadii, index, labels, first, from, mid, minSlice);
+        FinalRefinementTask right = new FinalRefinementTask(dataSet, centroids, detailedRadii, index, labels, first, mid, to, minSlice);
+        left.fork();
+        ClusterSums res = right.compute();
+        res.add(left.join());
+        return res;
+    }
+
+    ClusterSums assign() {
+        int dimensionality = dataSet.getDimensionality();
+        ClusterSums sums = new ClusterSums(centroids.length, dimensionality);
+        int[] p = new int[dimensionality];
+        int[] candidates = index == null ? null : new int[centroids.length];
+        double[] candidateDist = index == null ? null : new double[centroids.length];
+        for (int j = from; j < to; j++) {
+            dataSet.get(j, p);
+            int bestId = -1;
+            double minDist = Double.POSITIVE_INFINITY;
+            if (index == null) {
+                for (int i = 0; i < centroids.length; i++) {
+                    double dist = Utils.ellipticalRelativeDistanceWithLimit1(centroids[i], detailedRadii[i], p);
+                    if (dist < minDist) {
+                        minDist = dist;
+                        bestId = i;
+                    }
+                }
+            } else {
+                //a cluster whose box does not contain the point is at distance greater than 1
+                //so, if a candidate is at distance at most 1, the nearest cluster is a candidate
+                int n = index.query(p, candidates);
+                for (int c = 0; c < n; c++) {
+                    int i = candidates[c];
+                    double dist = Utils.ellipticalRelativeDistanceWithLimit1(centroids[i], detailedRadii[i], p);
+                    candidateDist[c] = dist;
+                    if (dist < minDist) {
+                        minDist = dist;
+                        bestId = i;
+                    }
+                }
+                if (!(minDist <= 1)) {
+                    //the point is an outlier, and it is labeled with the nearest cluster among all
+                    //the distances from the candidates were already computed
+                    bestId = -1;
+                    minDist = Double.POSITIVE_INFINITY;
+                    for (int i = 0, c = 0; i < centroids.length; i++) {
+                        double dist;
+                        if (c < n && candidates[c] == i) {
+                            dist = candidateDist[c++];
+                        } else {
+                            dist = Utils.ellipticalRelativeDistanceWithLimit1(centroids[i], detailedRadii[i], p);
+                        }
+                        if (dist < minDist) {
+                            minDist = dist;
+                            bestId = i;
+                        }
+                    }
+                }
+            }
+            boolean outlier = !(minDist <= 1);
+            if (outlier) {
+                sums.nOutliers++;
+            } else if (!DETERMINISTIC_REDUCTION) {
+                sums.add(bestId, p);
+            }
+            //with the deterministic reduction, the outliers are marked with a negative value, restored by accumulate
+            labels[j - first] = DETERMINISTIC_REDUCTION && outlier ? -(bestId + 1) : bestId + 1;
+        }
+        return sums;
+    }
+
+    //adds to sums the points of a chunk, scanning them in order, given their labels
+    //restores the labels of the outliers, which are marked with a negative value by assign
+    static void accumulate(PointStore dataSet, int[] labels, int from, int to, ClusterSums sums) {
+        int[] p = new int[dataSet.getDimensionality()];
+        for (int j = from; j < to; j++) {
+            int label = labels[j - from];
+            if (label > 0) {
+                dataSet.get(j, p);
+                sums.add(label - 1, p);
+            } else {
+                labels[j - from] = -label;
+                sums.nOutliers++;
+            }
+        }
+    }
+
+    static class ClusterSums {
+
+        final int[] clusterN;
+        final double[][] clusterLS;
+        final double[][] clusterSS;
+        int nOutliers;
+
+        ClusterSums(int nOfClusters, int dimensionality) {
+            clusterN = new int[nOfClusters];
+            clusterLS = new double[nOfClusters][dimensionality];
+            clusterSS = new double[nOfClusters][dimensionality];
+        }
+
+        void add(int cluster, int[] p) {
+            clusterN[cluster]++;
+            double[] LS = clusterLS[cluster];
+            double[] SS = clusterSS[cluster];
+            for (int i = 0; i < p.length; i++) {
+                LS[i] += p[i];
+                SS[i] += p[i] * p[i];
+            }
+        }
+
+        void add(ClusterSums s) {
+            for (int c = 0; c < clusterN.length; c++) {
+                clusterN[c] += s.clusterN[c];
+                for (int i = 0; i < clusterLS[c].length; i++) {
+                    clusterLS[c][i] += s.clusterLS[c][i];
+                    clusterSS[c][i] += s.clusterSS[c][i];
+                }
+            }
+            nOutliers += s.nOutliers;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the bytes taken by the marginals of the blocks of an execution,
+ * and of the largest amount reached during the execution
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+class MarginalMemory {
+
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+
+    void allocated(long bytes) {
+        long u = used.addAndGet(bytes);
+        long p = peak.get();
+        while (u > p && !peak.compareAndSet(p, u)) {
+            p = peak.get();
+        }
+    }
+
+    void released(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    long getUsed() {
+        return used.get();
+    }
+
+    long getPeak() {
+        return peak.get();
+    }
+}
@@ -19,22 +19,29 @@ import edu.ucla.cs.scai.clubsp.commons.RegisteredWorker;
 import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
 import edu.ucla.cs.scai.clubsp.messages.DummyMessage;
 import edu.ucla.cs.scai.clubsp.messages.GenerateDataSetRequest;
-import edu.ucla.cs.scai.clubsp.messages.WorkerConnectionRequest;
+import edu.ucla.cs.scai.clubsp.messages.MessageInputStream;
+import edu.ucla.cs.scai.clubsp.messages.MessageOutputStream;
 import edu.ucla.cs.scai.clubsp.messages.WorkerConnectionRequest2;
+import edu.ucla.cs.scai.clubsp.messages.WorkerConnectionRequest;
 import edu.ucla.cs.scai.clubsp.messages.WorkerConnectionResponse;
+import edu.ucla.cs.scai.clubsp.transport.MessageListener;
+import edu.ucla.cs.scai.clubsp.transport.NioConnection;
+import edu.ucla.cs.scai.clubsp.transport.NioTransport;
+import edu.ucla.cs.scai.clubsp.transport.PeerChannel;
+import edu.ucla.cs.scai.clubsp.transport.StreamPeerChannel;
 import edu.ucla.cs.scai.clustering.syntheticgenerator.MultidimensionalGaussianGenerator;
 import edu.ucla.cs.scai.clustering.syntheticgenerator.Range;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,10 +53,14 @@ public class Worker {
 
     int port;
     String datasetsPath;
-    ObjectOutputStream masterOutputStream;
-    final HashMap<String, WorkerExecution> workerExecutions = new HashMap<>();
-    HashMap<String, ObjectOutputStream> workerOutputStreams = new HashMap<>();
+    PeerChannel masterChannel;
+    final ConcurrentHashMap<String, WorkerExecution> workerExecutions = new ConcurrentHashMap<>(); //read by the lanes of all the executions
+    final ConcurrentHashMap<String, PeerChannel> workerChannels = new ConcurrentHashMap<>();
     HashMap<String, RegisteredWorker> registeredWorkers = new HashMap<>();
+    NioTransport transport; //used instead of the sockets when clubsp.transport=nio
+    final WorkerTaskExecutor taskExecutor = new WorkerTaskExecutor(); //executes the received messages
+    final DataSetCache dataSetCache = new DataSetCache(DataSetCache.BUDGET); //the data sets of the previous executions
+    final ExecutionAdmission admission = new ExecutionAdmission(ExecutionAdmission.BUDGET);
     String ip;
     String id;
     String masterIp;
@@ -72,6 +83,10 @@ public class Worker {
     }
 
     public void start() throws Exception {
+        if (NioTransport.ENABLED) {
+            startNio();
+            return;
+        }
         //start the deadlock detection
         /*
         new Thread() {
@@ -111,9 +126,9 @@ public class Worker {
                 socketOut.setTcpNoDelay(true);
                 socketOut.setKeepAlive(true);
                 socketOut.setSoTimeout(0);
-                masterOutputStream = new ObjectOutputStream(socketOut.getOutputStream());
+                masterChannel = new StreamPeerChannel("master", new MessageOutputStream(socketOut.getOutputStream()));
                 System.out.println("Saved socket to send messages to master");
-                masterOutputStream.writeObject(new WorkerConnectionRequest(port));
+                masterChannel.send(new WorkerConnectionRequest(port));
             } catch (Exception e) {
                 System.out.println("Connection to master " + masterIp + ":" + masterPort + " failed");
                 e.printStackTrace();
@@ -124,8 +139,8 @@ public class Worker {
                 Socket socketIn = listener.accept();
                 socketIn.setTcpNoDelay(true);
                 try {
-                    ObjectInputStream in = new ObjectInputStream(socketIn.getInputStream());
-                    ClubsPMessage msg = (ClubsPMessage) in.readObject();
+                    MessageInputStream in = new MessageInputStream(socketIn.getInputStream());
+                    ClubsPMessage msg = in.readMessage();
                     //System.out.println("Received message " + msg);
                     if (msg instanceof WorkerConnectionResponse) {
                         //the master accepted the connection
@@ -152,7 +167,7 @@ public class Worker {
                     } else {
                         System.out.println("Unrecognized message type");
                     }
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     System.out.println(e);
                     try {
                         //close socket
@@ -168,14 +183,57 @@ public class Worker {
         }
     }
 
-    public synchronized void sendMessageToMaster(ClubsPMessage message) {
+    //with the NIO transport, the connections are handled by the selector thread of the transport
+    void startNio() throws Exception {
+        transport = new NioTransport(new MessageListener() {
+            @Override
+            public void messageReceived(NioConnection connection, ClubsPMessage msg) {
+                acceptNio(connection, msg);
+            }
+        });
+        transport.listen(port);
+        transport.start();
+        System.out.println("Worker started. Waiting for an id");
+        try {
+            //only this connection will be used by the worker to send messages to the master
+            masterChannel = transport.connect(masterIp, masterPort, "master");
+            System.out.println("Saved connection to send messages to master");
+            masterChannel.send(new WorkerConnectionRequest(port));
+        } catch (Exception e) {
+            System.out.println("Connection to master " + masterIp + ":" + masterPort + " failed");
+            e.printStackTrace();
+            System.out.println("Worker terminated");
+            System.exit(0);
+        }
+        transport.join();
+        System.out.println("Worker terminated");
+    }
+
+    //handles the first message received on a connection accepted by the NIO transport
+    void acceptNio(NioConnection connection, ClubsPMessage msg) {
+        if (msg instanceof WorkerConnectionResponse) {
+            //the master accepted the connection, and will use only this connection to send messages to this worker
+            WorkerConnectionResponse res = (WorkerConnectionResponse) msg;
+            this.id = res.assignedId;
+            System.out.println("Received id: " + this.id);
+            connection.setName("master");
+            connection.setListener(new WorkerIncomingMessageHandler(null, this, "master"));
+        } else if (msg instanceof WorkerConnectionRequest2) {
+            //only this connection will be used by the worker res.id to send messages to this worker
+            WorkerConnectionRequest2 res = (WorkerConnectionRequest2) msg;
+            connection.setName(res.id);
+            connection.setListener(new WorkerIncomingMessageHandler(null, this, res.id));
+            System.out.println("Started listener on connection from worker " + res.id);
+        } else {
+            System.out.println("Unrecognized message type");
+        }
+    }
+
+    public void sendMessageToMaster(ClubsPMessage message) {
         try {
             System.out.println("Sending " + message + " to master");
-            masterOutputStream.writeObject(message);
-            System.out.println("Flushing");
-            masterOutputStream.flush();
-            //masterOutputStream.writeObject(new DummyMessage(message.getId()));
-            //masterOutputStream.flush();
+            masterChannel.send(message);
+            //masterChannel.send(new DummyMessage(message.getId()));
             System.out.println("Sent " + message + " to master");
         } catch (Exception e) {
             System.out.println("Error sending " + message + " to master\n" + e.getMessage());
@@ -183,15 +241,12 @@ public class Worker {
         }
     }
 
-    public synchronized void sendMessageToWorker(String workerId, ClubsPMessage message) {
+    //sends to different workers, and to the master, do not wait for each other
+    public void sendMessageToWorker(String workerId, ClubsPMessage message) {
         try {
             System.out.println("Sending " + message + " to " + workerId);
-            ObjectOutputStream oos = workerOutputStreams.get(workerId);
-            oos.writeObject(message);
-            System.out.println("Flushing");
-            oos.flush();
-            //oos.writeObject(new DummyMessage(message.getId()));
-            //oos.flush();
+            workerChannels.get(workerId).send(message);
+            //workerChannels.get(workerId).send(new DummyMessage(message.getId()));
             System.out.println("Sent " + message + " to " + workerId);
         } catch (Exception e) {
             System.out.println("Error sending " + message + " to worker " + workerId + "\n" + e.getMessage());
@@ -199,6 +254,14 @@ public class Worker {
         }
     }
 
+    public void printSendStatistics() {
+        ArrayList<PeerChannel> channels = new ArrayList<>(workerChannels.values());
+        channels.add(masterChannel);
+        for (PeerChannel c : channels) {
+            System.out.println("Messages sent to " + c.getName() + ": " + c.getSentMessages() + " (" + c.getSentBytes() + " bytes), peak send queue depth: " + c.getPeakQueueDepth() + ", current: " + c.getQueueDepth());
+        }
+    }
+
     public int getPort() {
         return port;
     }
@@ -255,28 +318,78 @@ public class Worker {
         }
     }
 
-    //start a new clustering execution
-    public synchronized void initExecution(String executionId, String dataSetId, HashMap<String, RegisteredWorker> workers, double scaleFactor) {
+    //start a new clustering execution, as soon as it is admitted
+    //the data set is loaded in the lanes of the execution, so that the other executions can proceed
+    //a request for an execution still running, e.g. from a master resuming it, replaces the old execution
+    public void initExecution(final String executionId, final String dataSetId, HashMap<String, RegisteredWorker> workers, final double scaleFactor) {
+        if (admission.contains(executionId)) {
+            System.out.println("Execution " + executionId + " requested again, the running one is cancelled");
+            cancelExecution(executionId);
+        }
+        connectToWorkers(workers);
+        long estimate = WorkerExecution.estimateMemory(datasetsPath + dataSetId, scaleFactor);
+        admission.submit(executionId, estimate, new Runnable() {
+            @Override
+            public void run() {
+                taskExecutor.addExecution(executionId);
+                taskExecutor.execute(executionId, new Runnable() {
+                    @Override
+                    public void run() {
+                        WorkerExecution newExec = new WorkerExecution(Worker.this, executionId, dataSetId, scaleFactor);
+                        synchronized (Worker.this) {
+                            if (admission.isAdmitted(executionId)) {
+                                workerExecutions.put(executionId, newExec);
+                            } else { //cancelled while the data set was loaded
+                                newExec.cancel();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    //the resources of a terminated execution are given to the others
+    public void finishExecution(String executionId) {
+        workerExecutions.remove(executionId);
+        taskExecutor.removeExecution(executionId);
+        admission.release(executionId);
+    }
+
+    //the execution is stopped, also if it is still waiting to be admitted
+    public synchronized void cancelExecution(String executionId) {
+        System.out.println("Cancelling execution " + executionId);
+        WorkerExecution ex = workerExecutions.get(executionId);
+        finishExecution(executionId);
+        if (ex != null) {
+            ex.cancel();
+        }
+    }
+
+    synchronized void connectToWorkers(HashMap<String, RegisteredWorker> workers) {
         registeredWorkers.putAll(workers);
         for (RegisteredWorker worker : workers.values()) {
-            if (!workerOutputStreams.containsKey(worker.id) && !worker.id.equals(id)) {
+            if (!workerChannels.containsKey(worker.id) && !worker.id.equals(id)) {
                 try {
-                    //only this socket will be used by this worker to send messages to worker worker.id
-                    Socket socketOut = new Socket(worker.ip, worker.port);
-                    socketOut.setTcpNoDelay(true);
-                    socketOut.setKeepAlive(true);
-                    socketOut.setSoTimeout(0);
-                    ObjectOutputStream out = new ObjectOutputStream(socketOut.getOutputStream());
-                    workerOutputStreams.put(worker.id, out);
-                    System.out.println("Saved socket to send messages to worker " + worker.id);
-                    out.writeObject(new WorkerConnectionRequest2(id));
+                    //only this channel will be used by this worker to send messages to worker worker.id
+                    PeerChannel out;
+                    if (transport != null) {
+                        out = transport.connect(worker.ip, worker.port, worker.id);
+                    } else {
+                        Socket socketOut = new Socket(worker.ip, worker.port);
+                        socketOut.setTcpNoDelay(true);
+                        socketOut.setKeepAlive(true);
+                        socketOut.setSoTimeout(0);
+                        out = new StreamPeerChannel(worker.id, new MessageOutputStream(socketOut.getOutputStream()));
+                    }
+                    workerChannels.put(worker.id, out);
+                    System.out.println("Saved channel to send messages to worker " + worker.id);
+                    out.send(new WorkerConnectionRequest2(id));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }
-        WorkerExecution newExec = new WorkerExecution(this, executionId, dataSetId, scaleFactor);
-        workerExecutions.put(executionId, newExec);
     }
 
     public synchronized void doGeneration(int nOfTuples, int domainWidth, double noiseRatio, int[][] centers, int[][] radii) {
@@ -16,14 +16,16 @@
 package edu.ucla.cs.scai.clubsp.worker;
 
 import edu.ucla.cs.scai.clubsp.commons.BestSplitResult;
-import edu.ucla.cs.scai.clubsp.commons.DataSetPoint;
 import edu.ucla.cs.scai.clubsp.commons.MarginalDistribution;
 import edu.ucla.cs.scai.clubsp.commons.MarginalDistributionWithSquares;
+import edu.ucla.cs.scai.clubsp.commons.PointStore;
 import edu.ucla.cs.scai.clubsp.commons.Range;
 import edu.ucla.cs.scai.clubsp.commons.SplitResult;
 import java.io.Serializable;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
@@ -31,6 +33,11 @@ import java.util.Collection;
  */
 public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
 
+    //the marginals of the blocks with at least PARALLEL_MARGINALS_THRESHOLD local points are computed
+    //by MARGINALS_PARALLELISM tasks on the compute pool, each one building the marginals of a subset of the dimensions
+    static final int MARGINALS_PARALLELISM = Math.max(1, Integer.getInteger("clubsp.worker.marginalsParallelism", WorkerTaskExecutor.COMPUTE_THREADS));
+    static final int PARALLEL_MARGINALS_THRESHOLD = Integer.getInteger("clubsp.worker.parallelMarginalsThreshold", 65536);
+
     int id;
     double[] localLS; //linear sum of the coordinates of the local points in the block
     double[] localSS; //squared sum of the coordinates of the local points in the block
@@ -42,10 +49,13 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
     WorkerClusterBlock lc; //left child node
     WorkerClusterBlock rc; //right child node
     WorkerClusterBlock parent; //parent node
+    boolean root; //set explicitly, since the leaves restored from a checkpoint have no parent
     WorkerClusterBlock sibling; //sibling node    
     int sd = -1; //the splitting dimension, when node is split sd is in [0..d-1];
     int sp; //the splitting position    
-    ArrayList<DataSetPoint> data;
+    PointStore points; //the points of the partition, shared by all the blocks
+    int[] permutation; //indexes of the points, partitioned by the splits and shared by all the blocks
+    int from, to; //the local points inside the block are permutation[from..to-1]
     double localSSQ;
     double globalSSQ;
     double localSSQd[];
@@ -57,6 +67,7 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
     boolean isOutlierNode = false;
     MarginalDistributionWithSquares[] localMarginals;
     MarginalDistribution[] globalMarginals;
+    MarginalMemory memory; //the accounting of the marginals of the execution, shared by all the blocks
     int dimensionality;
 
     public int getId() {
@@ -67,18 +78,57 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
         this.id = id;
     }
 
-    public static WorkerClusterBlock initRoot(Collection<DataSetPoint> data, Range globalDomain, int id) {
-        return new WorkerClusterBlock(data, globalDomain, id, true);
+    public static WorkerClusterBlock initRoot(PointStore points, Range globalDomain, int id) {
+        return initRoot(points, globalDomain, id, new MarginalMemory());
+    }
+
+    static WorkerClusterBlock initRoot(PointStore points, Range globalDomain, int id, MarginalMemory memory) {
+        int[] permutation = getIdentityPermutation(points.size());
+        WorkerClusterBlock root = new WorkerClusterBlock(points, permutation, 0, permutation.length, globalDomain, id, memory, true);
+        root.root = true;
+        return root;
+    }
+
+    //the local marginals of the root were computed by a previous execution on the same points
+    static WorkerClusterBlock initRoot(PointStore points, Range globalDomain, int id, MarginalMemory memory, MarginalDistributionWithSquares[] localMarginals) {
+        int[] permutation = getIdentityPermutation(points.size());
+        WorkerClusterBlock root = new WorkerClusterBlock(points, permutation, 0, permutation.length, globalDomain, id, memory, false);
+        root.root = true;
+        for (int i = 0; i < root.dimensionality; i++) {
+            root.localMarginals[i] = localMarginals[i];
+            memory.allocated(localMarginals[i].getSizeInBytes());
+        }
+        root.computeLocalLSSSfromMarginals();
+        return root;
+    }
+
+    //a leaf of the tree saved with a checkpoint; the marginals are computed only for the blocks which can still be split
+    static WorkerClusterBlock restore(PointStore points, int[] permutation, int from, int to, Range range, int id, boolean root, MarginalMemory memory, boolean computeMarginals) {
+        WorkerClusterBlock block = new WorkerClusterBlock(points, permutation, from, to, range, id, memory, computeMarginals);
+        block.root = root;
+        return block;
+    }
+
+    private static int[] getIdentityPermutation(int size) {
+        int[] permutation = new int[size];
+        for (int j = 0; j < permutation.length; j++) {
+            permutation[j] = j;
+        }
+        return permutation;
     }
 
     //this constructor must be called only by a worker
     //data are scanned, marginals, LS, SS and SSQ are computed
-    private WorkerClusterBlock(Collection<DataSetPoint> data, Range globalDomain, int id, boolean computeMarginals) {
-        this.data = new ArrayList(data);
+    private WorkerClusterBlock(PointStore points, int[] permutation, int from, int to, Range globalDomain, int id, MarginalMemory memory, boolean computeMarginals) {
+        this.points = points;
+        this.memory = memory;
+        this.permutation = permutation;
+        this.from = from;
+        this.to = to;
         this.id = id;
         this.r = globalDomain;
         dimensionality = globalDomain.inf.length;
-        localN = data.size();
+        localN = to - from;
         localMarginals = new MarginalDistributionWithSquares[dimensionality];
         globalMarginals = new MarginalDistribution[dimensionality];
         if (computeMarginals) {
@@ -104,21 +154,52 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
     }
 
     private void computeMarginalsFromData() {
+        int parallelism = Math.min(MARGINALS_PARALLELISM, dimensionality);
+        if (parallelism > 1 && to - from >= PARALLEL_MARGINALS_THRESHOLD) {
+            final ArrayList<RecursiveAction> tasks = new ArrayList<>();
+            for (int t = 0; t < parallelism; t++) {
+                final int firstDimension = t;
+                final int step = parallelism;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        computeMarginalsFromData(firstDimension, step);
+                    }
+                });
+            }
+            //the marginal of each dimension is built by one task, adding the points in the same order as a serial scan
+            WorkerTaskExecutor.COMPUTE_POOL.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } else {
+            computeMarginalsFromData(0, 1);
+        }
         for (int i = 0; i < dimensionality; i++) {
-            localMarginals[i] = new MarginalDistributionWithSquares(r.getWidth(i));
+            memory.allocated(localMarginals[i].getSizeInBytes());
+        }
+        computeLocalLSSSfromMarginals();
+    }
+
+    //computes the marginals of the dimensions firstDimension, firstDimension + step, ...
+    private void computeMarginalsFromData(int firstDimension, int step) {
+        for (int i = firstDimension; i < dimensionality; i += step) {
+            localMarginals[i] = new MarginalDistributionWithSquares(r.getWidth(i), dimensionality);
         }
-        for (DataSetPoint point : data) {
-            int[] p = point.p;
-            for (int d = 0; d < dimensionality; d++) {
+        int[] p = new int[dimensionality];
+        for (int j = from; j < to; j++) {
+            points.get(permutation[j], p);
+            for (int d = firstDimension; d < dimensionality; d += step) {
                 int coord = p[d];
                 localMarginals[d].add(p, coord - r.inf[d]);
             }
         }
-        computeLocalLSSSfromMarginals();
     }
 
     private void computeLocalLSSSfromMarginals() {
-        localN = data.size();
+        localN = to - from;
         localLS = new double[dimensionality];
         localSS = new double[dimensionality];
         int shortestMarginal=0;
@@ -127,11 +208,13 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
                 shortestMarginal=i;
             }
         }
-        for (int j = 0; j < localMarginals[shortestMarginal].count.length; j++) {
-            for (int i = 0; i < dimensionality; i++) {            
-                if (localMarginals[shortestMarginal].count[j] > 0) {
-                    localLS[i] += localMarginals[shortestMarginal].sum[j][i];
-                    localSS[i] += localMarginals[shortestMarginal].sumSqr[j][i];
+        MarginalDistributionWithSquares marginals = localMarginals[shortestMarginal];
+        for (int j = 0; j < marginals.count.length; j++) {
+            if (marginals.count[j] > 0) {
+                int offset = j * dimensionality;
+                for (int i = 0; i < dimensionality; i++) {
+                    localLS[i] += marginals.sum.get(offset + i);
+                    localSS[i] += marginals.sumSqr.get(offset + i);
                 }
             }
         }
@@ -142,7 +225,7 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
     }
 
     public boolean isRoot() {
-        return parent == null;
+        return root;
     }
 
     public double getLocalSSQ() {
@@ -165,40 +248,46 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
     //if the global marginal is not initialized, it means that there is one only worker
     //and there was no previous computation of the global marginals
     public BestSplitResult computeBestSplit(int dimension) {
+        MarginalDistribution marginals = getGlobalMarginals(dimension);
+        return scanBestSplit(marginals.count, marginals.sum, r.getWidth(dimension), r.getInfCoord(dimension), dimensionality, globalN, globalLS);
+    }
+
+    //finds the split position along a dimension which maximizes the SSQ reduction, given the
+    //marginal counts and the flat marginal sums of the dimension, and the N and LS of the block
+    //the left and right LS are updated with running sums, in one pass over the sums of each position
+    static BestSplitResult scanBestSplit(int[] count, DoubleBuffer sum, int width, int inf, int dimensionality, int n, double[] LS) {
         double maxDeltaSSQ = 0; //the maximum SSQ reduction found on the dimension
         int bestPosition = -1; //the best position found on the dimension
         double[] leftLS = new double[dimensionality];
-        double[] rightLS = new double[dimensionality];
-        if (globalMarginals[dimension] == null) {
-            globalMarginals[dimension] = localMarginals[dimension].getSimpleCopy();
-        }
+        double[] rightLS = Arrays.copyOf(LS, dimensionality);
         int nLeft = 0;
-        int nRight = globalN;
-        System.arraycopy(globalLS, 0, rightLS, 0, dimensionality);
-        //compute the splitting position set
-        MarginalDistribution marginals = globalMarginals[dimension];
-        int width = r.getWidth(dimension);
-        for (int pos = 0; pos < width - 1; pos++) {
-            if (marginals.count[pos] == 0) {
+        int nRight = n;
+        for (int pos = 0, offset = 0; pos < width - 1; pos++, offset += dimensionality) {
+            int c = count[pos];
+            if (c == 0) {
                 continue;
             }
-            nLeft += marginals.count[pos];
-            nRight -= marginals.count[pos];
+            nLeft += c;
+            nRight -= c;
             if (nRight == 0) {
                 break;
             }
-            for (int k = 0; k < dimensionality; k++) {
-                leftLS[k] += marginals.sum[pos][k];
-                rightLS[k] -= marginals.sum[pos][k];
-            }
+            double dLeft = nLeft;
+            double dRight = nRight;
             double deltaSSQ = 0;
             for (int k = 0; k < dimensionality; k++) {
-                deltaSSQ += Math.pow(leftLS[k] / nLeft - rightLS[k] / nRight, 2);
+                double s = sum.get(offset + k);
+                double l = leftLS[k] + s;
+                double r = rightLS[k] - s;
+                leftLS[k] = l;
+                rightLS[k] = r;
+                double diff = l / dLeft - r / dRight;
+                deltaSSQ += diff * diff;
             }
-            deltaSSQ *= (1.0 * Math.max(nLeft, nRight) / globalN) * Math.min(nLeft, nRight);
+            deltaSSQ *= (1.0 * Math.max(nLeft, nRight) / n) * Math.min(nLeft, nRight);
             if (deltaSSQ > maxDeltaSSQ) {
                 maxDeltaSSQ = deltaSSQ;
-                bestPosition = r.getInfCoord(dimension) + pos;
+                bestPosition = inf + pos;
             }
         }
         return new BestSplitResult(bestPosition, maxDeltaSSQ);
@@ -206,22 +295,35 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
 
     //splits the block, partition data and computes the marginals, LS, and SS
     //this method is for the worker
+    //the slice of the permutation owned by the block is partitioned in place
+    //the left child gets the first part of the slice, the right child gets the rest
     public WorkerClusterBlock[] split(int splitDimension, int splitPosition, int leftId, int rightId) {
         Range[] newRanges = r.getSplit(splitDimension, splitPosition);
-        ArrayList<DataSetPoint> dataLeft = new ArrayList<>();
-        ArrayList<DataSetPoint> dataRight = new ArrayList<>();
-        for (DataSetPoint p : data) {
-            if (p.p[splitDimension] <= splitPosition) {
-                dataLeft.add(p);
-            } else {
-                dataRight.add(p);
+        int[] column = points.getColumn(splitDimension);
+        int i = from;
+        int j = to - 1;
+        while (true) {
+            while (i <= j && column[permutation[i]] <= splitPosition) {
+                i++;
             }
-        }
-        data.clear();
+            while (i <= j && column[permutation[j]] > splitPosition) {
+                j--;
+            }
+            if (i >= j) {
+                break;
+            }
+            int tmp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = tmp;
+            i++;
+            j--;
+        }
+        int nLeft = i - from;
+        int nRight = to - i;
         sd = splitDimension;
         sp = splitPosition;
-        WorkerClusterBlock leftBlock = new WorkerClusterBlock(dataLeft, newRanges[0], leftId, dataLeft.size() <= dataRight.size());
-        WorkerClusterBlock rightBlock = new WorkerClusterBlock(dataRight, newRanges[1], rightId, dataLeft.size() > dataRight.size());
+        WorkerClusterBlock leftBlock = new WorkerClusterBlock(points, permutation, from, i, newRanges[0], leftId, memory, nLeft <= nRight);
+        WorkerClusterBlock rightBlock = new WorkerClusterBlock(points, permutation, i, to, newRanges[1], rightId, memory, nLeft > nRight);
         leftBlock.parent = this;
         rightBlock.parent = this;
         lc = leftBlock;
@@ -229,13 +331,13 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
         leftBlock.sibling = rightBlock;
         rightBlock.sibling = leftBlock;
 
-        (dataLeft.size() > dataRight.size() ? leftBlock : rightBlock).computeMarginalsFromSibling();
+        (nLeft > nRight ? leftBlock : rightBlock).computeMarginalsFromSibling();
 
         return new WorkerClusterBlock[]{leftBlock, rightBlock};
     }
 
     private void computeMarginalsFromSibling() {
-        localN = data.size();
+        localN = to - from;
         localMarginals = new MarginalDistributionWithSquares[dimensionality];
         for (int i = 0; i < dimensionality; i++) {
             if (i == parent.sd) {
@@ -248,6 +350,7 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
                 localMarginals[i] = parent.localMarginals[i].getCopy();
                 localMarginals[i].sub(sibling.localMarginals[i]);
             }
+            memory.allocated(localMarginals[i].getSizeInBytes());
         }
         computeLocalLSSSfromMarginals();
     }
@@ -426,7 +529,7 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
         boolean[] localMaxima = new boolean[width];
         int lastRestrictedPositionType = 0; //-1: min, 1: max
 
-        if (parent != null && maxMobileAvg < 1.0 * globalN / r.getWidth(dimension)) {
+        if (!root && maxMobileAvg < 1.0 * globalN / r.getWidth(dimension)) {
             return false;
         }
 
@@ -516,21 +619,46 @@ public class WorkerClusterBlock implements Comparable<WorkerClusterBlock> {
     public MarginalDistribution getGlobalMarginals(int dimension) {
         if (globalMarginals[dimension] == null) {
             globalMarginals[dimension] = localMarginals[dimension].getSimpleCopy();
+            memory.allocated(globalMarginals[dimension].getSizeInBytes());
         }
         return globalMarginals[dimension];
     }
 
     public void sumToGlobalMarginals(MarginalDistribution marginals, int dimension) {
-        if (globalMarginals[dimension] == null) {
-            globalMarginals[dimension] = localMarginals[dimension].getSimpleCopy();
+        getGlobalMarginals(dimension).add(marginals);
+    }
+
+    //false if the marginals of the dimension were released
+    public boolean hasMarginals(int dimension) {
+        return localMarginals[dimension] != null;
+    }
+
+    //the global marginals of the dimension are discarded, they are built again from the local ones if needed
+    public void releaseGlobalMarginals(int dimension) {
+        if (globalMarginals[dimension] != null) {
+            memory.released(globalMarginals[dimension].getSizeInBytes());
+            globalMarginals[dimension].release();
+            globalMarginals[dimension] = null;
+        }
+    }
+
+    //both the local and the global marginals of the dimension are discarded
+    //after this, the block can be neither split nor evaluated along the dimension
+    public void releaseMarginals(int dimension) {
+        releaseGlobalMarginals(dimension);
+        if (localMarginals[dimension] != null) {
+            memory.released(localMarginals[dimension].getSizeInBytes());
+            localMarginals[dimension].release();
+            localMarginals[dimension] = null;
         }
-        globalMarginals[dimension].add(marginals);
     }
 
     public int rangeCount(Range range) {
         int res=0;
-        for (DataSetPoint d:data) {
-            if (range.contains(d.p)) {
+        int[] p = new int[dimensionality];
+        for (int j = from; j < to; j++) {
+            points.get(permutation[j], p);
+            if (range.contains(p)) {
                 res++;
             }
         }
@@ -16,12 +16,19 @@
 package edu.ucla.cs.scai.clubsp.worker;
 
 import edu.ucla.cs.scai.clubsp.commons.BestSplitResult;
-import edu.ucla.cs.scai.clubsp.commons.DataSetPoint;
+import edu.ucla.cs.scai.clubsp.commons.BoxIndex;
+import edu.ucla.cs.scai.clubsp.commons.CheckpointWriter;
+import edu.ucla.cs.scai.clubsp.commons.ColumnarDataSetFile;
+import edu.ucla.cs.scai.clubsp.commons.LabelWriter;
+import edu.ucla.cs.scai.clubsp.commons.MarginalAllocator;
 import edu.ucla.cs.scai.clubsp.commons.MarginalDistribution;
+import edu.ucla.cs.scai.clubsp.commons.MarginalDistributionWithSquares;
+import edu.ucla.cs.scai.clubsp.commons.PointStore;
 import edu.ucla.cs.scai.clubsp.commons.Range;
 import edu.ucla.cs.scai.clubsp.commons.SplitResult;
 import edu.ucla.cs.scai.clubsp.commons.Utils;
 import edu.ucla.cs.scai.clubsp.master.Sequence;
+import edu.ucla.cs.scai.clubsp.messages.CheckpointResponse;
 import edu.ucla.cs.scai.clubsp.messages.ComputeBestSplitResponse;
 import edu.ucla.cs.scai.clubsp.messages.ComputeValleyCriterionResponse;
 import edu.ucla.cs.scai.clubsp.messages.FinalRefinementResponse;
@@ -30,22 +37,33 @@ import edu.ucla.cs.scai.clubsp.messages.IntermediateRefinementResponse;
 import edu.ucla.cs.scai.clubsp.messages.LoadDataSetResponse;
 import edu.ucla.cs.scai.clubsp.messages.ReceiveMarginalsRequest;
 import edu.ucla.cs.scai.clubsp.messages.ReceiveMarginalsResponse;
+import edu.ucla.cs.scai.clubsp.messages.RestoreCheckpointResponse;
 import edu.ucla.cs.scai.clubsp.messages.RestrictedCountResponse;
 import edu.ucla.cs.scai.clubsp.messages.SplitResponse;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.FileOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Objects;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -55,9 +73,9 @@ public class WorkerExecution {
 
     String dataSetId;
     String executionId;
-    HashMap<Integer, WorkerClusterBlock> blocks = new HashMap<>();
+    ConcurrentHashMap<Integer, WorkerClusterBlock> blocks = new ConcurrentHashMap<>(); //the master can split a block while the best split of others is computed
     int dimensionality;
-    ArrayList<DataSetPoint> dataSet;
+    PointStore dataSet;
     Sequence sequence = new Sequence();
     int dataSetSize;
     long initTime;
@@ -65,7 +83,23 @@ public class WorkerExecution {
     Worker worker;
     double scaleFactor;
     private static final double radiusMultiplier = 3;
+    static final int LABELS_CHUNK_SIZE = Integer.getInteger("clubsp.worker.labelsChunkSize", 1 << 20); //points assigned before their labels are written
+    //with bounded marginals, the marginals of a block are discarded as soon as the block is split
+    //or the master tells that it will not be split, and the global marginals are not kept by the senders
+    static final boolean BOUNDED_MARGINALS = Boolean.getBoolean("clubsp.boundedMarginals");
+    //with pipelined loading, the lines of a text data set are parsed in chunks by the compute pool while the file is read,
+    //and the marginals of the root are built on the local domain while the master waits for the domains of the other workers
+    static final boolean PIPELINED_LOADING = Boolean.getBoolean("clubsp.worker.pipelinedLoading");
+    static final int LOADING_CHUNK_SIZE = Integer.getInteger("clubsp.worker.loadingChunkSize", 1 << 14); //lines parsed by a task
     private Object[] marginalLocks;
+    MarginalMemory marginalMemory = new MarginalMemory();
+    DataSetCache.Entry cachedDataSet; //null if the data set is not in the cache of the worker
+    volatile boolean cancelled;
+    WorkerClusterBlock provisionalRoot; //the root on the local domain, built before the global domain is known
+    static final int CHECKPOINT_VERSION = 3;
+    //the checkpoints whose files exist, used by the lane and by the checkpoint writer thread
+    final ArrayList<Integer> checkpointFiles = new ArrayList<>(); //guarded by itself
+    long dataSetLength, dataSetLastModified; //of the file loaded, saved with the checkpoints
 
     public WorkerExecution(final Worker worker, final String executionId, final String dataSetId, final double scaleFactor) {
         this.worker = worker;
@@ -76,8 +110,116 @@ public class WorkerExecution {
         //@Override
         //public void run() {
         try {
-            BufferedReader in = new BufferedReader(new FileReader(worker.datasetsPath + dataSetId));
-            dataSet = new ArrayList<>();
+            String fileName = worker.datasetsPath + dataSetId;
+            File file = new File(fileName);
+            dataSetLength = file.length();
+            dataSetLastModified = file.lastModified();
+            cachedDataSet = worker.dataSetCache.get(fileName, scaleFactor);
+            if (cachedDataSet != null) {
+                loadCachedDataSet();
+            } else {
+                DataSetCache.Entry entry = new DataSetCache.Entry(fileName, scaleFactor);
+                if (ColumnarDataSetFile.isColumnar(fileName)) {
+                    loadColumnarDataSet(fileName);
+                } else {
+                    loadTextDataSet(fileName);
+                }
+                if (worker.dataSetCache.put(entry, dataSet, localDomain)) {
+                    cachedDataSet = entry;
+                }
+                if (PIPELINED_LOADING && dataSetSize > 0) {
+                    long startTime = System.currentTimeMillis();
+                    WorkerClusterBlock root = WorkerClusterBlock.initRoot(dataSet, localDomain, 0, marginalMemory);
+                    synchronized (this) {
+                        if (cancelled) {
+                            releaseMarginals(root);
+                        } else {
+                            provisionalRoot = root;
+                        }
+                    }
+                    System.out.println("Marginals of the root built on the local domain in " + (System.currentTimeMillis() - startTime) + " msec");
+                }
+            }
+            worker.admission.update(executionId, estimateMemory(dataSetSize, dimensionality, localDomain));
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        //}
+        //}.start();
+    }
+
+    //the estimated memory of an execution, before the data set is loaded
+    //the size of a text data set is estimated from the length of its first line
+    static long estimateMemory(String fileName, double scaleFactor) {
+        try {
+            if (ColumnarDataSetFile.isColumnar(fileName)) {
+                try (ColumnarDataSetFile in = ColumnarDataSetFile.open(fileName)) {
+                    return estimateMemory(in.getSize(), in.getDimensionality(), in.getDomain(scaleFactor));
+                }
+            }
+            try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+                String l = in.readLine();
+                if (l == null) {
+                    return 0;
+                }
+                long n = new File(fileName).length() / (l.length() + 1);
+                return estimateMemory((int) Math.min(Integer.MAX_VALUE, n), new StringTokenizer(l, ", \t").countTokens(), null);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    //the points, their permutation and twice the marginals of the root, if the domain is known
+    static long estimateMemory(int n, int dimensionality, Range domain) {
+        long marginals = 0;
+        if (domain != null) {
+            for (int i = 0; i < dimensionality; i++) {
+                marginals += domain.getWidth(i) * (4L + 16L * dimensionality);
+            }
+        }
+        return 4L * n * (dimensionality + 1) + 2 * marginals;
+    }
+
+    //stops the execution: the running tasks return as soon as possible, and the marginals are released
+    void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            for (WorkerClusterBlock block : blocks.values()) {
+                releaseMarginals(block);
+            }
+            if (provisionalRoot != null) {
+                releaseMarginals(provisionalRoot);
+                provisionalRoot = null;
+            }
+        }
+    }
+
+    private void initMarginalLocks() {
+        marginalLocks = new Object[dimensionality];
+        for (int i = 0; i < dimensionality; i++) {
+            marginalLocks[i] = new Object();
+        }
+    }
+
+    //the points are shared with the other executions on the same data set, they are never changed
+    private void loadCachedDataSet() {
+        System.out.println("Data set " + dataSetId + " found in the cache");
+        dataSet = cachedDataSet.points;
+        dimensionality = dataSet.getDimensionality();
+        dataSetSize = dataSet.size();
+        localDomain = cachedDataSet.localDomain;
+        initMarginalLocks();
+        worker.sendMessageToMaster(new LoadDataSetResponse(executionId, localDomain));
+    }
+
+    private void loadTextDataSet(String fileName) throws IOException {
+        if (PIPELINED_LOADING) {
+            loadTextDataSetPipelined(fileName);
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
             String l = in.readLine();
             if (l != null && l.trim().length() > 0) {
                 StringTokenizer st = new StringTokenizer(l, ", \t");
@@ -85,11 +227,8 @@ public class WorkerExecution {
             } else {
                 dimensionality = 0;
             }
-            marginalLocks = new Object[dimensionality];
-            for (int i = 0; i < dimensionality; i++) {
-                marginalLocks[i] = new Object();
-            }
-            int j = 0;
+            initMarginalLocks();
+            dataSet = new PointStore(dimensionality, 1 << 16);
             int[] inf = new int[dimensionality];
             int[] sup = new int[dimensionality];
             for (int i = 0; i < dimensionality; i++) {
@@ -104,18 +243,119 @@ public class WorkerExecution {
                     inf[i] = Math.min(p[i], inf[i]);
                     sup[i] = Math.max(p[i], sup[i]);
                 }
-                dataSet.add(new DataSetPoint(p, j));
+                dataSet.add(p);
                 l = in.readLine();
-                j++;
             }
+            dataSet.trimToSize();
             dataSetSize = dataSet.size();
             localDomain = new Range(inf, sup);
+        }
+        worker.sendMessageToMaster(new LoadDataSetResponse(executionId, localDomain));
+    }
+
+    //the points of a chunk of lines, with their bounds
+    static class ParsedChunk {
+
+        int[][] columns;
+        int size;
+        int[] inf, sup;
+    }
+
+    static ParsedChunk parseLines(String[] lines, int size, int dimensionality, double scaleFactor) {
+        ParsedChunk chunk = new ParsedChunk();
+        chunk.columns = new int[dimensionality][size];
+        chunk.size = size;
+        chunk.inf = new int[dimensionality];
+        chunk.sup = new int[dimensionality];
+        for (int i = 0; i < dimensionality; i++) {
+            chunk.inf[i] = Integer.MAX_VALUE;
+            chunk.sup[i] = Integer.MIN_VALUE;
+        }
+        for (int j = 0; j < size; j++) {
+            StringTokenizer st = new StringTokenizer(lines[j], ", \t");
+            for (int i = 0; i < dimensionality; i++) {
+                int c = (int) (Integer.parseInt(st.nextToken()) / scaleFactor + 0.5);
+                chunk.columns[i][j] = c;
+                chunk.inf[i] = Math.min(c, chunk.inf[i]);
+                chunk.sup[i] = Math.max(c, chunk.sup[i]);
+            }
+        }
+        return chunk;
+    }
+
+    //this thread reads the lines, the compute pool parses them, and the chunks are appended in the order of the file
+    //the chunks in flight are bounded, so that the lines read do not outrun the parsing
+    private void loadTextDataSetPipelined(String fileName) throws IOException {
+        long startTime = System.currentTimeMillis();
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName), 1 << 16)) {
+            String l = in.readLine();
+            if (l != null && l.trim().length() > 0) {
+                StringTokenizer st = new StringTokenizer(l, ", \t");
+                dimensionality = st.countTokens();
+            } else {
+                dimensionality = 0;
+            }
+            initMarginalLocks();
+            dataSet = new PointStore(dimensionality, 1 << 16);
+            int[] inf = new int[dimensionality];
+            int[] sup = new int[dimensionality];
+            for (int i = 0; i < dimensionality; i++) {
+                inf[i] = Integer.MAX_VALUE;
+                sup[i] = Integer.MIN_VALUE;
+            }
+            ArrayDeque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+            int maxPending = 2 * worker.taskExecutor.getComputeShare();
+            while (l != null && l.trim().length() > 0) {
+                final String[] lines = new String[LOADING_CHUNK_SIZE];
+                int n = 0;
+                while (n < lines.length && l != null && l.trim().length() > 0) {
+                    lines[n++] = l;
+                    l = in.readLine();
+                }
+                final int size = n;
+                pending.add(WorkerTaskExecutor.COMPUTE_POOL.submit(new Callable<ParsedChunk>() {
+                    @Override
+                    public ParsedChunk call() {
+                        return parseLines(lines, size, dimensionality, scaleFactor);
+                    }
+                }));
+                while (pending.size() > maxPending || (!pending.isEmpty() && (l == null || l.trim().length() == 0))) {
+                    ParsedChunk chunk = pending.poll().get();
+                    dataSet.addAll(chunk.columns, chunk.size);
+                    for (int i = 0; i < dimensionality; i++) {
+                        inf[i] = Math.min(chunk.inf[i], inf[i]);
+                        sup[i] = Math.max(chunk.sup[i], sup[i]);
+                    }
+                }
+            }
+            dataSet.trimToSize();
+            dataSetSize = dataSet.size();
+            localDomain = new Range(inf, sup);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e.getCause() instanceof NumberFormatException) {
+                throw (NumberFormatException) e.getCause();
+            }
+            throw new IOException(e);
+        }
+        System.out.println("Data set " + dataSetId + " loaded in " + (System.currentTimeMillis() - startTime) + " msec");
+        worker.sendMessageToMaster(new LoadDataSetResponse(executionId, localDomain));
+    }
+
+    //the local domain is in the header, so the master is answered before the columns are read
+    //the next message of the master is handled by the same thread, after this method returns
+    private void loadColumnarDataSet(String fileName) throws IOException {
+        try (ColumnarDataSetFile in = ColumnarDataSetFile.open(fileName)) {
+            dimensionality = in.getDimensionality();
+            dataSetSize = in.getSize();
+            initMarginalLocks();
+            localDomain = in.getDomain(scaleFactor);
             worker.sendMessageToMaster(new LoadDataSetResponse(executionId, localDomain));
-        } catch (IOException | NumberFormatException e) {
-            e.printStackTrace();
+            int[][] columns = new int[dimensionality][];
+            for (int i = 0; i < dimensionality; i++) {
+                columns[i] = in.readColumn(i, scaleFactor);
+            }
+            dataSet = new PointStore(columns);
         }
-        //}
-        //}.start();
     }
 
     public String getDataSet() {
@@ -148,9 +388,45 @@ public class WorkerExecution {
         try {
             this.globalDomain = globalDomain;
             long startTime = System.currentTimeMillis();
-            //data are scanned, marginals, LS, SS and SSQ are computed
-            WorkerClusterBlock root = WorkerClusterBlock.initRoot(dataSet, globalDomain, 0);
-            blocks.put(0, root);
+            //data are scanned, marginals, LS, SS and SSQ are computed, unless the marginals are in the cache
+            MarginalDistributionWithSquares[] cachedMarginals = cachedDataSet == null ? null : worker.dataSetCache.getRootMarginals(cachedDataSet, globalDomain);
+            //the provisional root is taken under the lock used by cancel, which releases it otherwise
+            WorkerClusterBlock provisional;
+            synchronized (this) {
+                provisional = provisionalRoot;
+                provisionalRoot = null;
+            }
+            WorkerClusterBlock root;
+            if (cachedMarginals != null) {
+                System.out.println("Marginals of the root of " + dataSetId + " found in the cache");
+                if (provisional != null) {
+                    releaseMarginals(provisional);
+                }
+                root = WorkerClusterBlock.initRoot(dataSet, globalDomain, 0, marginalMemory, cachedMarginals);
+            } else if (provisional != null) {
+                //the global domain contains the local one, the marginals are only moved into the wider range
+                MarginalDistributionWithSquares[] marginals = new MarginalDistributionWithSquares[dimensionality];
+                for (int i = 0; i < dimensionality; i++) {
+                    marginals[i] = provisional.localMarginals[i].getCopyInWidth(globalDomain.getWidth(i), localDomain.inf[i] - globalDomain.inf[i]);
+                }
+                releaseMarginals(provisional);
+                root = WorkerClusterBlock.initRoot(dataSet, globalDomain, 0, marginalMemory, marginals);
+                if (cachedDataSet != null) {
+                    worker.dataSetCache.setRootMarginals(cachedDataSet, globalDomain, root.localMarginals);
+                }
+            } else {
+                root = WorkerClusterBlock.initRoot(dataSet, globalDomain, 0, marginalMemory);
+                if (cachedDataSet != null) {
+                    worker.dataSetCache.setRootMarginals(cachedDataSet, globalDomain, root.localMarginals);
+                }
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    releaseMarginals(root);
+                    return;
+                }
+                blocks.put(0, root);
+            }
             initTime = System.currentTimeMillis() - startTime;
             worker.sendMessageToMaster(new InitRootResponse(executionId, root.getLocalN(), root.getLocalLS(), root.getLocalSS()));
         } catch (Exception e) {
@@ -161,13 +437,24 @@ public class WorkerExecution {
 
     public void sendMarginals(int blockId, int dimension, String receiverId) {
         synchronized (marginalLocks[dimension]) {
-            MarginalDistribution marginals = blocks.get(blockId).getGlobalMarginals(dimension);
+            if (cancelled) {
+                return;
+            }
+            WorkerClusterBlock block = blocks.get(blockId);
+            MarginalDistribution marginals = block.getGlobalMarginals(dimension);
             worker.sendMessageToWorker(receiverId, new ReceiveMarginalsRequest(executionId, blockId, dimension, marginals, System.currentTimeMillis(), receiverId));
+            //the marginals have been encoded when the send returns
+            if (BOUNDED_MARGINALS) { //a worker that sent its marginals is not involved anymore in their aggregation
+                block.releaseGlobalMarginals(dimension);
+            }
         }
     }
 
     public void receiveMarginals(final int blockId, final int dimension, final MarginalDistribution marginals, long time) {
         synchronized (marginalLocks[dimension]) {
+            if (cancelled) {
+                return;
+            }
             System.out.println("Start to sum the marginals of dimension " + dimension + " of block " + blockId + " ");
             blocks.get(blockId).sumToGlobalMarginals(marginals, dimension);
             System.out.println("Confirm to the master that marginals of dimension " + dimension + " of block " + blockId + " have been added");
@@ -177,6 +464,9 @@ public class WorkerExecution {
 
     public void computeBestSplit(int blockId, int dimension, int globalN, double[] globalLS, double[] globalSS) {
         synchronized (marginalLocks[dimension]) {
+            if (cancelled) {
+                return;
+            }
             WorkerClusterBlock block = blocks.get(blockId);
             block.setGlobalN(globalN);
             block.setGlobalLS(globalLS);
@@ -188,6 +478,9 @@ public class WorkerExecution {
     }
 
     public synchronized void doSplit(int blockId, int splitDimension, int splitPosition, int leftId, int rightId, int globalN, double[] globalLS, double globalSS[]) {
+        if (cancelled) {
+            return;
+        }
         WorkerClusterBlock block = blocks.get(blockId);
         //the following three values could be already assigned at this point, because the computeBestSplit was previously called on this worker
         //however, it is possibile the for some workers the values were not assigned yet
@@ -197,6 +490,9 @@ public class WorkerExecution {
         WorkerClusterBlock[] newBlocks = block.split(splitDimension, splitPosition, leftId, rightId);
         blocks.put(leftId, newBlocks[0]);
         blocks.put(rightId, newBlocks[1]);
+        if (BOUNDED_MARGINALS) { //the marginals of the children have been derived
+            releaseMarginals(block);
+        }
         worker.sendMessageToMaster(new SplitResponse(executionId, blockId,
                 new SplitResult(newBlocks[0].localN, newBlocks[0].localLS, newBlocks[0].localSS,
                         newBlocks[1].localN, newBlocks[1].localLS, newBlocks[1].localSS)));
@@ -204,12 +500,185 @@ public class WorkerExecution {
 
     public void computeValleyCriterion(int blockId, int dimension, double delta) {
         synchronized (marginalLocks[dimension]) {
+            if (cancelled) {
+                return;
+            }
             WorkerClusterBlock block = blocks.get(blockId);
-            boolean satisfied = block.valleyCriterion(dimension, delta);
+            //the block could have been already split, after the criterion was satisfied along another dimension
+            boolean satisfied = block.hasMarginals(dimension) && block.valleyCriterion(dimension, delta);
             worker.sendMessageToMaster(new ComputeValleyCriterionResponse(executionId, blockId, dimension, satisfied));
         }
     }
 
+    File getCheckpointFile(int checkpointId) {
+        return CheckpointWriter.getFile(worker.datasetsPath, executionId + "_" + worker.id + "_" + checkpointId + ".checkpoint");
+    }
+
+    //saves the permutation of the partition and the slices of the leaves of the tree
+    //the permutation is copied now, since the splits that follow change it, and the file is written in background
+    //the files older than the last checkpoint written by the master are deleted, as it will never refer to them
+    public void checkpoint(final int checkpointId, final int committedCheckpointId) {
+        final int[] permutation;
+        final ArrayList<WorkerClusterBlock> leaves = new ArrayList<>();
+        synchronized (this) { //no split is running
+            if (cancelled) {
+                return;
+            }
+            for (WorkerClusterBlock block : blocks.values()) {
+                if (block.isLeaf()) {
+                    leaves.add(block);
+                }
+            }
+            if (leaves.isEmpty()) {
+                System.out.println("No blocks to save in checkpoint " + checkpointId + " of execution " + executionId);
+                worker.sendMessageToMaster(new CheckpointResponse(executionId, checkpointId, false));
+                return;
+            }
+            permutation = leaves.get(0).permutation.clone(); //shared by all the blocks
+        }
+        CheckpointWriter.write(getCheckpointFile(checkpointId), new CheckpointWriter.Content() {
+            @Override
+            public void writeTo(DataOutputStream out) throws IOException {
+                out.writeInt(CHECKPOINT_VERSION);
+                out.writeUTF(executionId);
+                out.writeLong(dataSetLength);
+                out.writeLong(dataSetLastModified);
+                out.writeInt(permutation.length);
+                writeInts(out, permutation);
+                out.writeInt(leaves.size());
+                for (WorkerClusterBlock block : leaves) {
+                    out.writeInt(block.id);
+                    out.writeInt(block.from);
+                    out.writeInt(block.to);
+                    out.writeBoolean(block.root);
+                    writeInts(out, block.r.inf);
+                    writeInts(out, block.r.sup);
+                }
+            }
+        }, new CheckpointWriter.Listener() {
+            @Override
+            public void checkpointWritten(boolean written) {
+                if (written) {
+                    synchronized (checkpointFiles) {
+                        for (Iterator<Integer> it = checkpointFiles.iterator(); it.hasNext();) {
+                            int id = it.next();
+                            if (id < committedCheckpointId) {
+                                getCheckpointFile(id).delete();
+                                it.remove();
+                            }
+                        }
+                        checkpointFiles.add(checkpointId);
+                    }
+                }
+                worker.sendMessageToMaster(new CheckpointResponse(executionId, checkpointId, written));
+            }
+        });
+    }
+
+    //the files are deleted after the pending writes
+    private void deleteCheckpoints() {
+        CheckpointWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (checkpointFiles) {
+                    for (int id : checkpointFiles) {
+                        getCheckpointFile(id).delete();
+                    }
+                    checkpointFiles.clear();
+                }
+            }
+        });
+    }
+
+    //the blocks are rebuilt from the checkpoint instead of splitting the root
+    public void restoreCheckpoint(int checkpointId, Range globalDomain, ArrayList<Integer> pendingBlockIds) {
+        boolean restored = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getCheckpointFile(checkpointId)), 1 << 16))) {
+            if (in.readInt() != CHECKPOINT_VERSION || !in.readUTF().equals(executionId)) {
+                throw new IOException("Invalid checkpoint " + checkpointId + " of execution " + executionId);
+            }
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            int[] permutation = new int[in.readInt()];
+            if (length != dataSetLength || lastModified != dataSetLastModified || permutation.length != dataSetSize) {
+                throw new IOException("The data set " + dataSetId + " changed after the checkpoint of execution " + executionId);
+            }
+            readInts(in, permutation);
+            this.globalDomain = globalDomain;
+            HashSet<Integer> pending = new HashSet<>(pendingBlockIds);
+            HashMap<Integer, WorkerClusterBlock> leaves = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                int id = in.readInt();
+                int from = in.readInt();
+                int to = in.readInt();
+                boolean root = in.readBoolean();
+                Range r = new Range(new int[dimensionality], new int[dimensionality]);
+                readInts(in, r.inf);
+                readInts(in, r.sup);
+                leaves.put(id, WorkerClusterBlock.restore(dataSet, permutation, from, to, r, id, root, marginalMemory, pending.contains(id)));
+            }
+            synchronized (this) {
+                if (provisionalRoot != null) {
+                    releaseMarginals(provisionalRoot);
+                    provisionalRoot = null;
+                }
+                blocks.putAll(leaves);
+                if (cancelled) {
+                    for (WorkerClusterBlock block : leaves.values()) {
+                        releaseMarginals(block);
+                    }
+                    return;
+                }
+            }
+            synchronized (checkpointFiles) {
+                checkpointFiles.add(checkpointId);
+            }
+            //the previous checkpoint may still exist, since it is deleted only after the next one is written
+            CheckpointWriter.delete(getCheckpointFile(checkpointId - 1));
+            restored = true;
+            System.out.println("Execution " + executionId + " restored from checkpoint " + checkpointId + " with " + leaves.size() + " blocks, " + pending.size() + " to be split");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        worker.sendMessageToMaster(new RestoreCheckpointResponse(executionId, restored));
+    }
+
+    //the integers are converted in chunks, the permutation can be large
+    static void writeInts(DataOutputStream out, int[] v) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Math.min(v.length, 1 << 16));
+        for (int from = 0; from < v.length; from += buffer.capacity() / 4) {
+            int n = Math.min(v.length - from, buffer.capacity() / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(v, from, n);
+            out.write(buffer.array(), 0, 4 * n);
+        }
+    }
+
+    static void readInts(DataInputStream in, int[] v) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * Math.min(v.length, 1 << 16));
+        for (int from = 0; from < v.length; from += buffer.capacity() / 4) {
+            int n = Math.min(v.length - from, buffer.capacity() / 4);
+            in.readFully(buffer.array(), 0, 4 * n);
+            buffer.clear();
+            buffer.asIntBuffer().get(v, from, n);
+        }
+    }
+
+    //the blocks will not be split, therefore their marginals are not needed anymore
+    public void releaseMarginals(ArrayList<Integer> blockIds) {
+        for (int blockId : blockIds) {
+            releaseMarginals(blocks.get(blockId));
+        }
+    }
+
+    private void releaseMarginals(WorkerClusterBlock block) {
+        for (int i = 0; i < dimensionality; i++) {
+            synchronized (marginalLocks[i]) {
+                block.releaseMarginals(i);
+            }
+        }
+    }
+
     public void computeRestrictedCount(ArrayList<Integer> blockIds, ArrayList<Range> restrictedRanges) {
         ArrayList<Integer> count = new ArrayList<>();
         for (int i = 0; i < blockIds.size(); i++) {
@@ -222,53 +691,47 @@ public class WorkerExecution {
     public void doIntermediateRefinement(ArrayList<Integer> clusterBlockIds, ArrayList<double[]> originalCentroids, ArrayList<double[]> originalDetailedRadii) {
         ArrayList<WorkerClusterBlock> allLeafBlocks = new ArrayList<>();
         for (WorkerClusterBlock block : blocks.values()) {
+            //the divisive phase is over, the marginals are not used anymore and the off-heap ones can be reused
+            releaseMarginals(block);
             if (block.isLeaf()) {
                 allLeafBlocks.add(block);
             }
         }
         ArrayList<WorkerClusterBlock> clusterBlocks = new ArrayList<>();
-        HashMap<Integer, Double> minimumDetailedRadii = new HashMap<>();
-        HashMap<Integer, double[]> centroids = new HashMap<>();
-        HashMap<Integer, double[]> radii = new HashMap<>();
+        double[][] centroids = new double[clusterBlockIds.size()][];
+        double[][] radii = new double[clusterBlockIds.size()][];
         for (int i = 0; i < clusterBlockIds.size(); i++) {
-            int blockId = clusterBlockIds.get(i);
-            WorkerClusterBlock block = blocks.get(blockId);
-            clusterBlocks.add(block);
-            double[] detailedRadius = originalDetailedRadii.get(i);
-            double minDetailedRadius = Double.POSITIVE_INFINITY;
-            for (int k = 0; k < dimensionality; k++) {
-                minDetailedRadius = Math.min(detailedRadius[k], minDetailedRadius);
-            }
-            minimumDetailedRadii.put(blockId, minDetailedRadius);
-            centroids.put(blockId, originalCentroids.get(i));
-            radii.put(blockId, originalDetailedRadii.get(i));
+            clusterBlocks.add(blocks.get(clusterBlockIds.get(i)));
+            centroids[i] = originalCentroids.get(i);
+            radii[i] = originalDetailedRadii.get(i);
         }
-        HashMap<Integer, HashSet<Integer>> reachability = getReachability(allLeafBlocks, clusterBlocks, centroids, radii);
-        for (int blockId : clusterBlockIds) {
-            WorkerClusterBlock block = blocks.get(blockId);
+        int[][] reachability = getReachability(allLeafBlocks, clusterBlocks, centroids, radii);
+        for (WorkerClusterBlock block : clusterBlocks) {
             block.globalN = 0;
             block.globalLS = new double[dimensionality];
             block.globalSS = new double[dimensionality];
         }
-        for (WorkerClusterBlock n : allLeafBlocks) {
-            HashSet<Integer> reachableClusters = reachability.get(n.id);
-            for (DataSetPoint point : n.data) {
-                int[] p = point.p;
-                WorkerClusterBlock nearestClusterBlock = null;
+        int[] p = new int[dimensionality];
+        for (int l = 0; l < allLeafBlocks.size(); l++) {
+            WorkerClusterBlock n = allLeafBlocks.get(l);
+            int[] reachableClusters = reachability[l];
+            for (int j = n.from; j < n.to; j++) {
+                dataSet.get(n.permutation[j], p);
+                int nearestCluster = -1;
                 double minDist = Double.POSITIVE_INFINITY;
                 boolean outlier = true;
-                for (int blockId : reachableClusters) {
-                    WorkerClusterBlock block = blocks.get(blockId);
-                    double dist = Utils.ellipticalRelativeDistanceWithLimit1(centroids.get(blockId), radii.get(block.id), p);
+                for (int i : reachableClusters) {
+                    double dist = Utils.ellipticalRelativeDistanceWithLimit1(centroids[i], radii[i], p);
                     if (dist <= 1) {
                         outlier = false;
                     }
                     if (dist < minDist) {
                         minDist = dist;
-                        nearestClusterBlock = block;
+                        nearestCluster = i;
                     }
                 }
                 if (!outlier) {
+                    WorkerClusterBlock nearestClusterBlock = clusterBlocks.get(nearestCluster);
                     nearestClusterBlock.globalN++;
                     for (int i = 0; i < dimensionality; i++) {
                         nearestClusterBlock.globalLS[i] += p[i];
@@ -293,79 +756,125 @@ public class WorkerExecution {
         worker.sendMessageToMaster(new IntermediateRefinementResponse(executionId, clusterIds, clusterN, clusterLS, clusterSS));
     }
 
-    private HashMap<Integer, HashSet<Integer>> getReachability(ArrayList<WorkerClusterBlock> allBlocks, ArrayList<WorkerClusterBlock> clusterBlocks, HashMap<Integer, double[]> centroids, HashMap<Integer, double[]> radii) {
-        HashMap<Integer, HashSet<Integer>> res = new HashMap<>();
-
-        for (WorkerClusterBlock c1 : allBlocks) {
-            HashSet<Integer> a = new HashSet<>();
-            res.put(c1.id, a);
-            for (WorkerClusterBlock c2 : clusterBlocks) {
-                if (c1.id == c2.id) {
-                    a.add(c2.id);
-                } else {
-                    double[] nearestBorderPoint = new double[dimensionality];
-                    double[] c = centroids.get(c2.id);
-                    for (int i = 0; i < dimensionality; i++) {
-                        if (c[i] >= c1.r.inf[i]) {
-                            if (c[i] <= c1.r.sup[i]) {
-                                nearestBorderPoint[i] = c[i];
-                            } else {
-                                nearestBorderPoint[i] = c1.r.sup[i];
-                            }
+    //returns, for each leaf block, the indexes in clusterBlocks of the cluster blocks reachable from it, in increasing order
+    //a cluster block is reachable from a leaf if it is the leaf itself, or if the point of the leaf nearest
+    //to its centroid is inside its ellipsoid, which requires the leaf to overlap the bounding box of the ellipsoid
+    //the bounding boxes are indexed, so only the clusters whose box overlaps the leaf are tested
+    private int[][] getReachability(ArrayList<WorkerClusterBlock> leafBlocks, ArrayList<WorkerClusterBlock> clusterBlocks, double[][] centroids, double[][] radii) {
+        HashMap<Integer, Integer> clusterIndexes = new HashMap<>();
+        double[][] boxInf = new double[clusterBlocks.size()][dimensionality];
+        double[][] boxSup = new double[clusterBlocks.size()][dimensionality];
+        for (int i = 0; i < clusterBlocks.size(); i++) {
+            clusterIndexes.put(clusterBlocks.get(i).id, i);
+            for (int k = 0; k < dimensionality; k++) {
+                //the box is slightly enlarged, so that rounding can not exclude a point the exact test accepts
+                double r = radii[i][k] * (1 + 1e-9);
+                boxInf[i][k] = centroids[i][k] - r;
+                boxSup[i][k] = centroids[i][k] + r;
+            }
+        }
+        BoxIndex index = new BoxIndex(boxInf, boxSup);
+        int[][] res = new int[leafBlocks.size()][];
+        double[] nearestBorderPoint = new double[dimensionality];
+        int[] reachable = new int[clusterBlocks.size()];
+        for (int l = 0; l < leafBlocks.size(); l++) {
+            WorkerClusterBlock c1 = leafBlocks.get(l);
+            Integer ownIndex = clusterIndexes.get(c1.id);
+            int n = 0;
+            boolean ownAdded = ownIndex == null;
+            for (int i : index.query(c1.r)) {
+                if (!ownAdded && ownIndex <= i) {
+                    reachable[n++] = ownIndex;
+                    ownAdded = true;
+                    if (ownIndex == i) {
+                        continue;
+                    }
+                }
+                double[] c = centroids[i];
+                for (int k = 0; k < dimensionality; k++) {
+                    if (c[k] >= c1.r.inf[k]) {
+                        if (c[k] <= c1.r.sup[k]) {
+                            nearestBorderPoint[k] = c[k];
                         } else {
-                            nearestBorderPoint[i] = c1.r.inf[i];
+                            nearestBorderPoint[k] = c1.r.sup[k];
                         }
+                    } else {
+                        nearestBorderPoint[k] = c1.r.inf[k];
                     }
-                    if (Utils.ellipticalRelativeDistanceWithLimit1(c, radii.get(c2.id), nearestBorderPoint) <= 1) {
-                        a.add(c2.id);
-                    }
                 }
+                if (Utils.ellipticalRelativeDistanceWithLimit1(c, radii[i], nearestBorderPoint) <= 1) {
+                    reachable[n++] = i;
+                }
+            }
+            if (!ownAdded) {
+                reachable[n++] = ownIndex;
             }
+            res[l] = Arrays.copyOf(reachable, n);
         }
         return res;
     }
 
+    //the format and the number of labels are checked before the assignment starts
+    private LabelWriter openLabelWriter(int nOfClusters) {
+        try {
+            return LabelWriter.open(worker.datasetsPath + executionId + "_" + worker.id + ".labels", nOfClusters);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("The labels of execution " + executionId + " will not be written: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void closeLabelWriter(LabelWriter out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.out.println("Error closing the labels of execution " + executionId + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
     public void doFinalRefinement(ArrayList<double[]> centroids, ArrayList<double[]> detailedRadii) {
-        int[] clusterAssignment = new int[dataSet.size()];
-        int[] clusterN = new int[centroids.size()];
-        double[][] clusterLS = new double[centroids.size()][dimensionality];
-        double[][] clusterSS = new double[centroids.size()][dimensionality];
-        int nOutliers = 0;
-        for (DataSetPoint point : dataSet) {
-            int[] p = point.p;
-            int bestId = -1;
-            double minDist = Double.POSITIVE_INFINITY;
-            boolean outlier = true;
-            for (int i = 0; i < centroids.size(); i++) {
-                double dist = Utils.ellipticalRelativeDistanceWithLimit1(centroids.get(i), detailedRadii.get(i), p);
-                if (dist <= 1) {
-                    outlier = false;
-                }
-                if (dist < minDist) {
-                    minDist = dist;
-                    bestId = i;
-                }
+        double[][] c = centroids.toArray(new double[centroids.size()][]);
+        double[][] r = detailedRadii.toArray(new double[detailedRadii.size()][]);
+        BoxIndex index = FinalRefinementTask.PRUNED_ASSIGNMENT ? FinalRefinementTask.ellipsoidIndex(c, r) : null;
+        FinalRefinementTask.ClusterSums sums = new FinalRefinementTask.ClusterSums(c.length, dimensionality);
+        //the points are assigned in chunks, in parallel on the compute pool of the worker
+        //the labels of a chunk are encoded after its assignment, and flushed to disk by the writer thread while the next chunk is assigned
+        //the sums do not depend on the labels file: if it cannot be written, the error is reported and the master still gets the sums
+        int[] labels = new int[Math.max(1, Math.min(dataSetSize, LABELS_CHUNK_SIZE))];
+        LabelWriter out = openLabelWriter(c.length);
+        for (int from = 0; from < dataSetSize && !cancelled; from += labels.length) {
+            int to = Math.min(dataSetSize, from + labels.length);
+            FinalRefinementTask task = FinalRefinementTask.forChunk(dataSet, c, r, index, labels, from, to, worker.taskExecutor.getComputeShare());
+            FinalRefinementTask.ClusterSums chunkSums = WorkerTaskExecutor.COMPUTE_POOL.invoke(task);
+            if (FinalRefinementTask.DETERMINISTIC_REDUCTION) {
+                FinalRefinementTask.accumulate(dataSet, labels, from, to, sums);
+            } else {
+                sums.add(chunkSums);
             }
-
-            if (!outlier) {
-                clusterN[bestId]++;
-                for (int i = 0; i < dimensionality; i++) {
-                    clusterLS[bestId][i] += p[i];
-                    clusterSS[bestId][i] += p[i] * p[i];
+            if (out != null) {
+                try {
+                    out.write(labels, 0, to - from);
+                } catch (IOException e) {
+                    System.out.println("Error writing the labels of execution " + executionId + ", the file is incomplete: " + e);
+                    e.printStackTrace();
+                    closeLabelWriter(out);
+                    out = null;
                 }
-            } else {
-                nOutliers++;
             }
-            clusterAssignment[point.filePosition] = bestId + 1;
         }
-        worker.sendMessageToMaster(new FinalRefinementResponse(executionId, clusterN, clusterLS, clusterSS, nOutliers));
-        //now print the labels on file
-        try (PrintWriter out = new PrintWriter(new FileOutputStream(worker.datasetsPath + executionId + "_" + worker.id + ".labels"), true)) {
-            for (int c : clusterAssignment) {
-                out.println(c);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (out != null) {
+            closeLabelWriter(out);
+        }
+        if (cancelled) {
+            return;
         }
+        worker.sendMessageToMaster(new FinalRefinementResponse(executionId, sums.clusterN, sums.clusterLS, sums.clusterSS, sums.nOutliers));
+        deleteCheckpoints(); //the execution will not be resumed
+        worker.finishExecution(executionId);
+        worker.printSendStatistics();
+        System.out.println("Peak marginal memory of execution " + executionId + ": " + marginalMemory.getPeak() + " bytes, still allocated: " + marginalMemory.getUsed() + " bytes");
+        System.out.println(MarginalAllocator.getStatistics());
     }
 }
@@ -15,6 +15,8 @@
  */
 package edu.ucla.cs.scai.clubsp.worker;
 
+import edu.ucla.cs.scai.clubsp.messages.CancelExecutionRequest;
+import edu.ucla.cs.scai.clubsp.messages.CheckpointRequest;
 import edu.ucla.cs.scai.clubsp.messages.ClubsPMessage;
 import edu.ucla.cs.scai.clubsp.messages.ComputeBestSplitRequest;
 import edu.ucla.cs.scai.clubsp.messages.ComputeValleyCriterionRequest;
@@ -25,24 +27,28 @@ import edu.ucla.cs.scai.clubsp.messages.GenerateDataSetRequest;
 import edu.ucla.cs.scai.clubsp.messages.InitRootRequest;
 import edu.ucla.cs.scai.clubsp.messages.IntermediateRefinementRequest;
 import edu.ucla.cs.scai.clubsp.messages.LoadDataSetRequest;
+import edu.ucla.cs.scai.clubsp.messages.MessageInputStream;
 import edu.ucla.cs.scai.clubsp.messages.ReceiveMarginalsRequest;
+import edu.ucla.cs.scai.clubsp.messages.ReleaseMarginalsRequest;
+import edu.ucla.cs.scai.clubsp.messages.RestoreCheckpointRequest;
 import edu.ucla.cs.scai.clubsp.messages.RestrictedCountRequest;
 import edu.ucla.cs.scai.clubsp.messages.SendMarginalsRequest;
 import edu.ucla.cs.scai.clubsp.messages.SplitRequest;
-import java.io.ObjectInputStream;
+import edu.ucla.cs.scai.clubsp.transport.MessageListener;
+import edu.ucla.cs.scai.clubsp.transport.NioConnection;
 import java.util.Date;
 
 /**
  *
  * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
  */
-class WorkerIncomingMessageHandler extends Thread {
+class WorkerIncomingMessageHandler extends Thread implements MessageListener {
 
-    ObjectInputStream in;
+    MessageInputStream in;
     Worker worker;
     String senderName;
 
-    public WorkerIncomingMessageHandler(ObjectInputStream in, Worker worker, String senderName) {
+    public WorkerIncomingMessageHandler(MessageInputStream in, Worker worker, String senderName) {
         this.in = in;
         this.worker = worker;
         this.senderName = senderName;
@@ -53,61 +59,7 @@ class WorkerIncomingMessageHandler extends Thread {
         boolean canrun=true;
         while (canrun) {
             try {
-                ClubsPMessage msg = (ClubsPMessage) in.readObject();
-                System.out.println(System.currentTimeMillis() + ": Received command " + msg + " " + msg.getId());
-                if (msg instanceof LoadDataSetRequest) {
-                    LoadDataSetRequest c = (LoadDataSetRequest) msg;
-                    worker.initExecution(c.executionId, c.dataSetId, c.workers, c.scaleFactor);
-                } else if (msg instanceof GenerateDataSetRequest) {
-                    GenerateDataSetRequest c = (GenerateDataSetRequest) msg;
-                    worker.doGeneration(c.nOfTuples, c.domainWidth, c.noiseRatio, c.centers, c.radii);
-                } else if (msg instanceof ExecutionMessage) {
-                    final WorkerExecution ex = worker.workerExecutions.get(((ExecutionMessage) msg).executionId);
-                    if (msg instanceof InitRootRequest) {
-                        InitRootRequest c = (InitRootRequest) msg;
-                        ex.initRoot(c.globalDomain);
-                    } else if (msg instanceof SendMarginalsRequest) {
-                        final SendMarginalsRequest c = (SendMarginalsRequest) msg;
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                ex.sendMarginals(c.blockId, c.dimension, c.receiverId);
-                            }
-                                                    
-                        }.start();
-                    } else if (msg instanceof ReceiveMarginalsRequest) {
-                        final ReceiveMarginalsRequest c = (ReceiveMarginalsRequest) msg;
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                ex.receiveMarginals(c.blockId, c.dimension, c.marginals, System.currentTimeMillis() - c.time);
-                            }                          
-                        }.start();
-                    } else if (msg instanceof ComputeBestSplitRequest) {
-                        ComputeBestSplitRequest c = (ComputeBestSplitRequest) msg;
-                        ex.computeBestSplit(c.blockId, c.dimension, c.globalN, c.globalLS, c.globalSS);
-                    } else if (msg instanceof SplitRequest) {
-                        SplitRequest c = (SplitRequest) msg;
-                        ex.doSplit(c.blockId, c.splitDimension, c.splitPosition, c.leftId, c.rightId, c.globalN, c.globalLS, c.globalSS);
-                    } else if (msg instanceof ComputeValleyCriterionRequest) {
-                        ComputeValleyCriterionRequest c = (ComputeValleyCriterionRequest) msg;
-                        ex.computeValleyCriterion(c.blockId, c.dimension, c.delta);
-                    } else if (msg instanceof RestrictedCountRequest) {
-                        RestrictedCountRequest c = (RestrictedCountRequest) msg;
-                        ex.computeRestrictedCount(c.blockIds, c.restrictedRanges);
-                    } else if (msg instanceof IntermediateRefinementRequest) {
-                        IntermediateRefinementRequest c = (IntermediateRefinementRequest) msg;
-                        ex.doIntermediateRefinement(c.clusterBlockIds, c.centroids, c.detailedRadii);
-                    } else if (msg instanceof FinalRefinementRequest) {
-                        FinalRefinementRequest c = (FinalRefinementRequest) msg;
-                        ex.doFinalRefinement(c.centroids, c.detailedRadii);
-                    } else {
-                        System.out.println("Unrecognized message type");
-                    }
-                } else if (msg instanceof DummyMessage) {
-                } else {
-                    System.out.println("Unrecognized message type");
-                }
+                handle(in.readMessage());
             } catch (Exception e) {
                 System.out.println("Error reading from the InputStream written by "+senderName+": " + e);
                 e.printStackTrace();
@@ -115,4 +67,109 @@ class WorkerIncomingMessageHandler extends Thread {
         }    
         System.out.println("Error: a WorkerMessageHandler stopped working!!!");
     }
+
+    //the messages are executed by the task executor of the worker, in the lanes of their execution: the ones
+    //concerning a dimension in the lane of that dimension, the others in the control lane of the execution
+    //the requests to start or cancel an execution, and the messages of no execution, run in the shared control lane,
+    //so that the executions are admitted in the order they are requested
+    public void handle(final ClubsPMessage msg) {
+        System.out.println(System.currentTimeMillis() + ": Received command " + msg + " " + msg.getId());
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                process(msg);
+            }
+        };
+        if (!(msg instanceof ExecutionMessage) || msg instanceof LoadDataSetRequest || msg instanceof CancelExecutionRequest) {
+            worker.taskExecutor.execute(task);
+            return;
+        }
+        String executionId = ((ExecutionMessage) msg).executionId;
+        int dimension = getDimension(msg);
+        boolean accepted;
+        if (dimension >= 0) {
+            accepted = worker.taskExecutor.executeForDimension(executionId, dimension, task);
+        } else {
+            accepted = worker.taskExecutor.execute(executionId, task);
+        }
+        if (!accepted) {
+            System.out.println("Ignored message of the unknown or terminated execution " + executionId);
+        }
+    }
+
+    static int getDimension(ClubsPMessage msg) {
+        if (msg instanceof SendMarginalsRequest) {
+            return ((SendMarginalsRequest) msg).dimension;
+        } else if (msg instanceof ReceiveMarginalsRequest) {
+            return ((ReceiveMarginalsRequest) msg).dimension;
+        } else if (msg instanceof ComputeBestSplitRequest) {
+            return ((ComputeBestSplitRequest) msg).dimension;
+        } else if (msg instanceof ComputeValleyCriterionRequest) {
+            return ((ComputeValleyCriterionRequest) msg).dimension;
+        }
+        return -1;
+    }
+
+    void process(ClubsPMessage msg) {
+        if (msg instanceof LoadDataSetRequest) {
+            LoadDataSetRequest c = (LoadDataSetRequest) msg;
+            worker.initExecution(c.executionId, c.dataSetId, c.workers, c.scaleFactor);
+        } else if (msg instanceof GenerateDataSetRequest) {
+            GenerateDataSetRequest c = (GenerateDataSetRequest) msg;
+            worker.doGeneration(c.nOfTuples, c.domainWidth, c.noiseRatio, c.centers, c.radii);
+        } else if (msg instanceof CancelExecutionRequest) {
+            worker.cancelExecution(((CancelExecutionRequest) msg).executionId);
+        } else if (msg instanceof ExecutionMessage) {
+            WorkerExecution ex = worker.workerExecutions.get(((ExecutionMessage) msg).executionId);
+            if (ex == null) {
+                System.out.println("Ignored message of the terminated execution " + ((ExecutionMessage) msg).executionId);
+            } else if (msg instanceof InitRootRequest) {
+                InitRootRequest c = (InitRootRequest) msg;
+                ex.initRoot(c.globalDomain);
+            } else if (msg instanceof SendMarginalsRequest) {
+                SendMarginalsRequest c = (SendMarginalsRequest) msg;
+                ex.sendMarginals(c.blockId, c.dimension, c.receiverId);
+            } else if (msg instanceof ReceiveMarginalsRequest) {
+                ReceiveMarginalsRequest c = (ReceiveMarginalsRequest) msg;
+                ex.receiveMarginals(c.blockId, c.dimension, c.marginals, System.currentTimeMillis() - c.time);
+            } else if (msg instanceof ComputeBestSplitRequest) {
+                ComputeBestSplitRequest c = (ComputeBestSplitRequest) msg;
+                ex.computeBestSplit(c.blockId, c.dimension, c.globalN, c.globalLS, c.globalSS);
+            } else if (msg instanceof SplitRequest) {
+                SplitRequest c = (SplitRequest) msg;
+                ex.doSplit(c.blockId, c.splitDimension, c.splitPosition, c.leftId, c.rightId, c.globalN, c.globalLS, c.globalSS);
+            } else if (msg instanceof ComputeValleyCriterionRequest) {
+                ComputeValleyCriterionRequest c = (ComputeValleyCriterionRequest) msg;
+                ex.computeValleyCriterion(c.blockId, c.dimension, c.delta);
+            } else if (msg instanceof ReleaseMarginalsRequest) {
+                ReleaseMarginalsRequest c = (ReleaseMarginalsRequest) msg;
+                ex.releaseMarginals(c.blockIds);
+            } else if (msg instanceof RestrictedCountRequest) {
+                RestrictedCountRequest c = (RestrictedCountRequest) msg;
+                ex.computeRestrictedCount(c.blockIds, c.restrictedRanges);
+            } else if (msg instanceof IntermediateRefinementRequest) {
+                IntermediateRefinementRequest c = (IntermediateRefinementRequest) msg;
+                ex.doIntermediateRefinement(c.clusterBlockIds, c.centroids, c.detailedRadii);
+            } else if (msg instanceof CheckpointRequest) {
+                CheckpointRequest c = (CheckpointRequest) msg;
+                ex.checkpoint(c.checkpointId, c.committedCheckpointId);
+            } else if (msg instanceof RestoreCheckpointRequest) {
+                RestoreCheckpointRequest c = (RestoreCheckpointRequest) msg;
+                ex.restoreCheckpoint(c.checkpointId, c.globalDomain, c.pendingBlockIds);
+            } else if (msg instanceof FinalRefinementRequest) {
+                FinalRefinementRequest c = (FinalRefinementRequest) msg;
+                ex.doFinalRefinement(c.centroids, c.detailedRadii);
+            } else {
+                System.out.println("Unrecognized message type");
+            }
+        } else if (msg instanceof DummyMessage) {
+        } else {
+            System.out.println("Unrecognized message type");
+        }
+    }
+
+    @Override
+    public void messageReceived(NioConnection connection, ClubsPMessage msg) {
+        handle(msg);
+    }
 }
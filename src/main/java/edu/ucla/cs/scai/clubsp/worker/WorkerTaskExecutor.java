@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015 ScAi, CSD, UCLA.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.ucla.cs.scai.clubsp.worker;
+
+import edu.ucla.cs.scai.clubsp.commons.FairScheduler;
+import edu.ucla.cs.scai.clubsp.commons.SerialExecutor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes the messages received by a worker on a bounded pool. Every
+ * execution has its own lanes: the tasks concerning a dimension run one at a
+ * time, in arrival order, in the lane of that dimension, and all the other
+ * tasks of the execution in its control lane. The messages of no execution
+ * run in a shared control lane. The threads of the pool serve the executions
+ * in turn. The configuration is read from the system properties:
+ * clubsp.worker.threads (size of the pool, by default the number of
+ * processors); clubsp.worker.dimensionAffinity (if true, every dimension is
+ * always handled by the same thread, dimension d by thread d % threads);
+ * clubsp.worker.virtualThreads (if true and supported by the JDK, the lanes
+ * run on virtual threads instead of the pool). The passes over the whole
+ * partition are split among the threads of a separate fork/join pool, sized by
+ * clubsp.worker.computeThreads (by default the number of processors).
+ *
+ * @author Giuseppe M. Mazzeo <mazzeo@cs.ucla.edu>
+ */
+class WorkerTaskExecutor {
+
+    static final int THREADS = Math.max(1, Integer.getInteger("clubsp.worker.threads", Runtime.getRuntime().availableProcessors()));
+    static final boolean DIMENSION_AFFINITY = Boolean.getBoolean("clubsp.worker.dimensionAffinity");
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("clubsp.worker.virtualThreads");
+    static final int COMPUTE_THREADS = Math.max(1, Integer.getInteger("clubsp.worker.computeThreads", Runtime.getRuntime().availableProcessors()));
+    static final ForkJoinPool COMPUTE_POOL = new ForkJoinPool(COMPUTE_THREADS); //used by the data-parallel passes, also inside the blocks
+
+    final ExecutorService pool; //null if the lanes run on the fair scheduler
+    final FairScheduler scheduler; //null if the lanes run on virtual threads
+    final ExecutorService[] affinityThreads; //null without dimension affinity
+    final SerialExecutor controlLane;
+    final HashMap<String, ExecutionLanes> executionLanes = new HashMap<>();
+
+    //the lanes of an execution, sharing a queue of the scheduler
+    class ExecutionLanes {
+
+        final Executor queue;
+        final SerialExecutor controlLane;
+        final ArrayList<SerialExecutor> dimensionLanes = new ArrayList<>();
+
+        ExecutionLanes() {
+            queue = scheduler != null ? scheduler.newQueue() : pool;
+            controlLane = new SerialExecutor(queue);
+        }
+
+        synchronized Executor getDimensionLane(int dimension) {
+            while (dimensionLanes.size() <= dimension) {
+                dimensionLanes.add(new SerialExecutor(queue));
+            }
+            return dimensionLanes.get(dimension);
+        }
+    }
+
+    WorkerTaskExecutor() {
+        ExecutorService virtualThreads = VIRTUAL_THREADS ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtualThreads != null) {
+            pool = virtualThreads;
+            scheduler = null;
+            affinityThreads = null;
+            System.out.println("Worker tasks run on virtual threads");
+        } else {
+            pool = null;
+            scheduler = new FairScheduler(THREADS, "WorkerTask");
+            if (DIMENSION_AFFINITY) {
+                affinityThreads = new ExecutorService[THREADS];
+                for (int i = 0; i < THREADS; i++) {
+                    affinityThreads[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory("WorkerDimension" + i));
+                }
+            } else {
+                affinityThreads = null;
+            }
+            System.out.println("Worker tasks run on " + THREADS + " threads" + (DIMENSION_AFFINITY ? " with dimension affinity" : ""));
+        }
+        controlLane = new SerialExecutor(scheduler != null ? scheduler.newQueue() : pool);
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor is looked up by reflection, since older JDKs must be supported
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            System.out.println("Virtual threads are not supported by this JDK, a bounded pool is used");
+            return null;
+        }
+    }
+
+    public void execute(Runnable task) {
+        controlLane.execute(wrap(task));
+    }
+
+    //returns false, and the task is discarded, if the execution is unknown or terminated
+    public boolean execute(String executionId, Runnable task) {
+        ExecutionLanes lanes = getLanes(executionId);
+        if (lanes == null) {
+            return false;
+        }
+        lanes.controlLane.execute(wrap(task));
+        return true;
+    }
+
+    //returns false, and the task is discarded, if the execution is unknown or terminated
+    public boolean executeForDimension(String executionId, int dimension, Runnable task) {
+        ExecutionLanes lanes = getLanes(executionId);
+        if (lanes == null) {
+            return false;
+        }
+        if (affinityThreads != null) {
+            affinityThreads[dimension % affinityThreads.length].execute(wrap(task));
+        } else {
+            lanes.getDimensionLane(dimension).execute(wrap(task));
+        }
+        return true;
+    }
+
+    synchronized ExecutionLanes getLanes(String executionId) {
+        return executionLanes.get(executionId);
+    }
+
+    //the lanes are created when the execution is admitted, and removed when it terminates
+    synchronized void addExecution(String executionId) {
+        if (!executionLanes.containsKey(executionId)) {
+            executionLanes.put(executionId, new ExecutionLanes());
+        }
+    }
+
+    //the tasks of the execution not yet started are discarded, the running ones are completed
+    synchronized void removeExecution(String executionId) {
+        ExecutionLanes lanes = executionLanes.remove(executionId);
+        if (lanes != null && lanes.queue instanceof FairScheduler.Queue) {
+            ((FairScheduler.Queue) lanes.queue).clear();
+        }
+    }
+
+    //the threads of the compute pool are shared among the executions with lanes
+    synchronized int getComputeShare() {
+        return Math.max(1, COMPUTE_THREADS / Math.max(1, executionLanes.size()));
+    }
+
+    //an exception must not stop the lane
+    static Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.out.println("Error executing a worker task: " + e);
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+
+        final String prefix;
+        final AtomicInteger n = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + "-" + n.incrementAndGet());
+        }
+    }
+}